@@ -0,0 +1,181 @@
+/* CipherPool.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      HashProvider
+ * REQUIRED BY:   SiteParameters, CryptnosApplication, ImportExportHandler
+ *
+ * This class keeps a reusable set of the JCA cryptography engines Cryptnos
+ * uses over and over again.  Every time we encrypt or decrypt a set of site
+ * parameters, generate a site key, or derive a salt, we used to ask the
+ * system for a brand new Cipher, SecretKeyFactory, or MessageDigest by name.
+ * Each of those getInstance() calls has to search through the installed
+ * security providers to find one that supports the algorithm, which on
+ * Android is surprisingly slow and generates a fair amount of garbage.  When
+ * we're loading hundreds or thousands of sites, that adds up quickly.
+ *
+ * Since Cryptnos only ever uses a fixed handful of algorithms, we can look
+ * each engine up once and keep reusing it.  None of these engines are thread
+ * safe, however, so we keep one set per thread.  The engines are always
+ * handed out ready to use:  digests are reset, and ciphers must be init()'ed
+ * by the caller before every use anyway, which wipes out any previous state.
+ * Because the same engine is handed out every time on a given thread, callers
+ * must be finished with one before they ask for it again on that thread.  In
+ * practice, that means using the engine right away and not holding on to it.
+ *
+ * Since site parameters are now encrypted by our own PBECipher class, this
+ * also keeps its AES cipher and PKCS #12 key generator.  The JCA key factory
+ * is still used by the old format importer.
+ *
+ * The hashes (such as the salt hash) aren't actually kept here.  They're all
+ * among our password generation hashes, so we simply borrow the per-thread
+ * engines from the HashProvider registry.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.security.MessageDigest;
+
+import javax.crypto.SecretKeyFactory;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+
+/**
+ * A per-thread pool of the cipher, key factory, and hash engines used for the
+ * fixed algorithms Cryptnos works with.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class CipherPool {
+
+	/* Private Members **********************************************************/
+
+	/** Our per-thread cache of the AES-256-CBC ciphers used by PBECipher to
+	 *  encrypt and decrypt site parameters.  These are built from our own
+	 *  Bouncy Castle classes, so they can't fail to be created. */
+	private static final ThreadLocal<BufferedBlockCipher> pbeCiphers =
+		new ThreadLocal<BufferedBlockCipher>() {
+			@Override
+			protected BufferedBlockCipher initialValue() {
+				return new PaddedBufferedBlockCipher(
+					new CBCBlockCipher(new AESFastEngine()));
+			}
+		};
+
+	/** Our per-thread cache of the PKCS #12 key generators used by PBECipher
+	 *  to derive site parameter keys. */
+	private static final ThreadLocal<PKCS12ParametersGenerator> pbeGenerators =
+		new ThreadLocal<PKCS12ParametersGenerator>() {
+			@Override
+			protected PKCS12ParametersGenerator initialValue() {
+				return new PKCS12ParametersGenerator(new SHA256Digest());
+			}
+		};
+
+	/** Our per-thread cache of CryptnosApplication.KEY_FACTORY key
+	 *  factories.  If the factory can't be created, the cached value will be
+	 *  null. */
+	private static final ThreadLocal<SecretKeyFactory> keyFactories =
+		new ThreadLocal<SecretKeyFactory>() {
+			@Override
+			protected SecretKeyFactory initialValue() {
+				try {
+					return SecretKeyFactory.getInstance(CryptnosApplication.KEY_FACTORY);
+				}
+				catch (Exception e) { return null; }
+			}
+		};
+
+	/**
+	 * Don't instantiate this class; everything here is static.
+	 */
+	private CipherPool() {}
+
+	/* Public Static Methods **************************************************/
+
+	/**
+	 * Get this thread's PBECipher AES cipher.  The cipher must be initialized
+	 * with init() before each use, and must not be held on to past that use,
+	 * since the next call on this thread will hand out the very same object.
+	 * @return A BufferedBlockCipher
+	 */
+	public static BufferedBlockCipher getPBECipher()
+	{
+		return pbeCiphers.get();
+	}
+
+	/**
+	 * Get this thread's PBECipher PKCS #12 key generator.  The generator
+	 * must be initialized with init() before each use.
+	 * @return A PKCS12ParametersGenerator
+	 */
+	public static PKCS12ParametersGenerator getPBEGenerator()
+	{
+		return pbeGenerators.get();
+	}
+
+	/**
+	 * Get this thread's CryptnosApplication.KEY_FACTORY key factory
+	 * @return A SecretKeyFactory
+	 * @throws Exception Thrown if the key factory is not available
+	 */
+	public static SecretKeyFactory getKeyFactory() throws Exception
+	{
+		SecretKeyFactory keyFac = keyFactories.get();
+		if (keyFac == null) throw new Exception("Key factory " +
+			CryptnosApplication.KEY_FACTORY + " is not available");
+		return keyFac;
+	}
+
+	/**
+	 * Get this thread's engine for one of the Java built-in hashes, reset and
+	 * ready to use.  This is borrowed from the HashProvider registry, so it is
+	 * the same engine used to generate passwords with that hash on this
+	 * thread.
+	 * @param name The name of the hash, as passed to MessageDigest.getInstance()
+	 * @return A MessageDigest
+	 * @throws Exception Thrown if the hash is not available
+	 */
+	public static MessageDigest getHasher(String name) throws Exception
+	{
+		HashProvider provider = HashProvider.forName(name);
+		if (provider instanceof HashProvider.JCAHashProvider)
+			return ((HashProvider.JCAHashProvider)provider).getEngine();
+		throw new Exception("Hash " + name + " is not available");
+	}
+
+	/**
+	 * Get this thread's CryptnosApplication.SALT_HASH engine, reset and ready
+	 * to use.
+	 * @return A MessageDigest
+	 * @throws Exception Thrown if the hash is not available
+	 */
+	public static MessageDigest getSaltHasher() throws Exception
+	{
+		return getHasher(CryptnosApplication.SALT_HASH);
+	}
+
+}
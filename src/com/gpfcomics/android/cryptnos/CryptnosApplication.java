@@ -63,6 +63,25 @@
  * UPDATES FOR 1.3.1:  Added option to clear passwords on focus loss.  Minor tweaks
  * to make Lint happy.
  * 
+ * UPDATES FOR 1.3.5:  Removed the hash length hash table.  The Base64-encoded
+ * digest lengths are now precomputed by the HashProvider registry.  The site
+ * list builder now decrypts the records on a RecordDecoder, which spreads the
+ * work across all of the device's CPU cores.  The site parameter key cache is
+ * cleared when memory runs low or when the parameter salt is refreshed.  The
+ * salt hash engine now comes from the per-thread CipherPool.  The site list
+ * is now kept in an immutable SiteCatalog behind an AtomicReference, rather
+ * than a static array and Hashtable, so it can be safely read from any
+ * thread.  The application listens for changes to the database and swaps in
+ * an updated catalog whenever a site is saved or deleted, so Activities no
+ * longer need to mark the list as dirty (forcing every site to be decrypted
+ * all over again) whenever they change something.  The list builder now
+ * tries to load the site list from the encrypted site index first, and only
+ * decrypts every record if the index is missing or out of date, saving a new
+ * index when it's done.  Once the site list has been built, a RecordUpgrader
+ * is started in the background to rewrite any records still in the old
+ * per-site key format in the new vault key format.  Records are now read from
+ * the database as raw bytes rather than Base64 text.
+ * 
  * "QR code" is a registered trademark of Denso Wave Incorporated.
  * 
  * This program is Copyright 2012, Jeffrey T. Darlington.
@@ -86,14 +105,10 @@ package com.gpfcomics.android.cryptnos;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
-import java.util.Hashtable;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-
-import org.bouncycastle.crypto.Digest;
-import org.bouncycastle.crypto.digests.RIPEMD160Digest;
-import org.bouncycastle.crypto.digests.TigerDigest;
-import org.bouncycastle.crypto.digests.WhirlpoolDigest;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -134,7 +149,7 @@ import android.widget.Toast;
  * mark the list as "dirty", forcing it to be reloaded the next time it is
  * requested.
  * @author Jeffrey T. Darlington
- * @version 1.3.1
+ * @version 1.3.5
  * @since 1.0
  */
 public class CryptnosApplication extends Application {
@@ -165,7 +180,10 @@ public class CryptnosApplication extends Application {
 	 *  being the new cross-platform import/export format).  Note that this
 	 *  will be a "password-based encryption" (PBE) cipher (specifically 
 	 *  256-bit AES as of this writing), so take that into account when
-	 *  using this value. */
+	 *  using this value.  Note that as of 1.3.5, site parameters are no
+	 *  longer encrypted through the JCA using this name; PBECipher implements
+	 *  exactly the same scheme in-tree.  The old platform-specific import
+	 *  format still uses it, however. */
 	public static final String KEY_FACTORY = "PBEWITHSHA-256AND256BITAES-CBC-BC";
 	/** The number of iterations used for cryptographic key generation, such
 	 *  as in creating an AlgorithmParameterSpec.  Ideally, this should be
@@ -226,22 +244,25 @@ public class CryptnosApplication extends Application {
 	 *  itself, PARAMETER_SALT will *NOT* be unique per device, but that's the
 	 *  best we can do.*/
 	private static final String SALTIER_SALT = "KnVcUpHHAB5K9HW2Vbq8D9CAk2P7sGiwhQLPeF6wI3UVSCTpJioStD4NFcrR1";
-	/** Hashtables cannot have null keys or values.  While siteListHash uses
-	 *  its keys to represent the site list for searching, we need some token
-	 *  value to put in as the value for each key in order for the insert to
-	 *  work.  This string will be inserted for each site key as the value.
-	 *  since this value is never used, its actual value is irrelevant. */
-	private static final String HASH_NULL = "NULL";
 
 	/* Private Members **********************************************************/
 	
-	/** The actual site list array.  When null, the site list is "dirty" and needs
+	/** The current site catalog.  When null, the site list is "dirty" and needs
 	 *  to be fetched from the database.  If populated, the list is "clean" and can
-	 *  be used directly, eliminating the expensive query operation. */
-	private static String[] siteList = null;
-	/** This hash table allows us to quickly search the site list for a specific
-	 *  site.  Sites will be stored as hash keys; hash values are ignored. */
-	private static Hashtable<String, String> siteListHash = null;
+	 *  be used directly, eliminating the expensive query operation.  Catalogs
+	 *  never change once they're built, so any thread can read the current one
+	 *  without locking.  Changes are made by swapping in a whole new catalog,
+	 *  while holding the lock on siteCatalogLock. */
+	private static final AtomicReference<SiteCatalog> siteCatalog =
+		new AtomicReference<SiteCatalog>(null);
+	/** The lock to hold while changing the site catalog or its version */
+	private static final Object siteCatalogLock = new Object();
+	/** A counter that goes up every time the database changes.  The list
+	 *  builder takes note of this before it starts reading the database; if
+	 *  it's changed by the time the builder is done, what it read may already
+	 *  be out of date, so it won't save its catalog.  Only touch this while
+	 *  holding the lock on siteCatalogLock. */
+	private static int siteCatalogVersion = 0;
 	/** A File representing the root of all import/export activities.  Files
 	 *  will only be written or read from this path. */
 	private static File importExportRoot = null;
@@ -292,14 +313,58 @@ public class CryptnosApplication extends Application {
 	private static ProgressDialog progressDialog = null;
 	/** A ListBuilderThread, which does the grunt work of building the list */
 	private static ListBuilderThread listBuilderThread = null;
-	/** This Hashtable contains a mapping of hash algorithm names to the length
-	 *  of their Base64-encoded digest strings.  This is used primarily by the
-	 *  New/Edit Parameters activity, which now uses a Spinner for character length
-	 *  restrictions.  When a new hash algorithm is selected, we'll query this hash
-	 *  table to find out what the maximum number of characters should be in the
-	 *  Spinner.  We'll populate and store this once so the list can be queried as
-	 *  many times as needed.*/
-	private static Hashtable<String, Integer> hashLengths = null;
+	/** The RecordUpgrader rewriting old records in the background, if one has
+	 *  been started.  Only touch this on the main thread. */
+	private static RecordUpgrader recordUpgrader = null;
+	/** Our listener for changes to the database.  Whenever a site is saved or
+	 *  deleted, we apply the same change to the site catalog.  Note that if
+	 *  the catalog hasn't been built yet, there's nothing to update; the
+	 *  change will be picked up when it's built. */
+	private final ParamsDbAdapter.ChangeListener dbChangeListener =
+		new ParamsDbAdapter.ChangeListener() {
+			public void onRecordSaved(String key, String site) {
+				synchronized (siteCatalogLock) {
+					siteCatalogVersion++;
+					SiteCatalog catalog = siteCatalog.get();
+					// If we somehow don't know the site's name, the best we
+					// can do is make the list get rebuilt:
+					if (catalog != null) siteCatalog.set(site == null ?
+						null : catalog.withSite(key, site));
+				}
+			}
+			public void onRecordsSaved(String[] keys, String[] sites,
+				int count) {
+				// Apply the whole batch at once, so we only copy the catalog
+				// once no matter how many sites were saved:
+				synchronized (siteCatalogLock) {
+					siteCatalogVersion++;
+					SiteCatalog catalog = siteCatalog.get();
+					if (catalog == null) return;
+					for (int i = 0; i < count; i++) {
+						if (sites[i] == null) {
+							siteCatalog.set(null);
+							return;
+						}
+					}
+					siteCatalog.set(catalog.withSites(keys, sites, count));
+				}
+			}
+			public void onRecordDeleted(String key) {
+				synchronized (siteCatalogLock) {
+					siteCatalogVersion++;
+					SiteCatalog catalog = siteCatalog.get();
+					if (catalog != null) siteCatalog.set(catalog.withoutSite(key));
+				}
+			}
+			public void onAllRecordsDeleted() {
+				// If everything's gone, we know exactly what the list looks
+				// like without having to build it:
+				synchronized (siteCatalogLock) {
+					siteCatalogVersion++;
+					siteCatalog.set(SiteCatalog.EMPTY);
+				}
+			}
+		};
 	
 	/* Public methods: ***********************************************************/
 	
@@ -312,6 +377,9 @@ public class CryptnosApplication extends Application {
 		// database:
 		DBHelper = new ParamsDbAdapter(this);
 		DBHelper.open();
+		// Listen for changes to the database so we can keep the site list
+		// up to date:
+		DBHelper.setChangeListener(dbChangeListener);
         // Set the root for all import/export activites.  For now, we'll
 		// hard code this to the root directory of the external storage
 		// device, usually an SD card.  We may change this in the future.
@@ -345,59 +413,6 @@ public class CryptnosApplication extends Application {
 		copyPasswordsToClipboard = prefs.getBoolean(PREFS_COPY_TO_CLIPBOARD, true);
 		showMasterPassword = prefs.getBoolean(PREFS_SHOW_MASTER_PASSWD, false);
 		clearPasswordsOnFocusLoss = prefs.getBoolean(PREFS_CLEAR_PASSWDS_ON_FOCUS_LOSS, false);
-		// Now build our hash table of hash algorithms to lengths:
-		try {
-			// Get the list of hashes from the string resources:
-			String[] hashes = getResources().getStringArray(R.array.hashList);
-			// Declare our hash table and initialize its size to the same size
-			// as the string array of hash names:
-			hashLengths = new Hashtable<String, Integer>(hashes.length);
-			// We're using two different hashing engines, the internal one and the
-			// Bouncy Castle one, so we'll need a reference to both:
-			MessageDigest internalHasher = null;
-			Digest bcHasher = null;
-			// Declare integers to hold the raw byte length and the Base64-encoded
-			// length of each digest:
-			int byteLength = 0;
-			int b64Length = 0;
-			// Loop through the hash name list:
-			for (int i = 0; i < hashes.length; i++) {
-				// If we're using an internal hasher, get the a copy of the
-				// engine and find out its byte length:
-				if (hashes[i].compareTo("MD5") == 0 ||
-					hashes[i].compareTo("SHA-1") == 0 ||
-					hashes[i].compareTo("SHA-256") == 0 ||
-					hashes[i].compareTo("SHA-384") == 0 ||
-					hashes[i].compareTo("SHA-512") == 0) {
-					internalHasher = MessageDigest.getInstance(hashes[i]);
-					byteLength = internalHasher.getDigestLength();
-				}
-				// For the Bouncy Castle engines, we'll need to declare each
-				// individual object and then get its byte length:
-				else if (hashes[i].compareTo("RIPEMD-160") == 0) {
-					bcHasher = new RIPEMD160Digest();
-					byteLength = bcHasher.getDigestSize();
-				}
-				else if (hashes[i].compareTo("Tiger") == 0) {
-					bcHasher = new TigerDigest();
-					byteLength = bcHasher.getDigestSize();
-				}
-				else if (hashes[i].compareTo("Whirlpool") == 0) {
-					bcHasher = new WhirlpoolDigest();
-					byteLength = bcHasher.getDigestSize();
-				}
-				// Now calculate the Base64-encoded length.  This formula comes
-				// from the Base64 Wikipedia article:
-				// https://secure.wikimedia.org/wikipedia/en/wiki/Base64
-				b64Length = (byteLength + 2 - ((byteLength + 2) % 3)) / 3 * 4;
-				// Now store the hash name and length into the hash table:
-				hashLengths.put(hashes[i], Integer.valueOf(b64Length));
-			}
-		// If anything blows up, set the hash table to null, which we'll catch
-		// as an error later:
-		} catch (Exception e1) {
-			hashLengths = null;
-		}
 	}
 	
 	@Override
@@ -406,8 +421,10 @@ public class CryptnosApplication extends Application {
 		// If we ever start running low on memory, clear out the site list
 		// and mark it as "dirty".  This frees up memory and forces us to
 		// rebuild the list again when it's needed.
-		siteList = null;
-		siteListHash = null;
+		siteCatalog.set(null);
+		// Throw away any cached encryption keys too.  They'll be derived
+		// again the next time they're needed:
+		SiteParameters.clearKeyCache();
 		// Clear out the salt as well:
 		super.onLowMemory();
 	}
@@ -419,8 +436,10 @@ public class CryptnosApplication extends Application {
 		// around; it could even be a security risk.  Clear out the site list
 		// and mark it as "dirty".  This frees up memory and forces us to
 		// rebuild the list again when it's needed.
-		siteList = null;
-		siteListHash = null;
+		siteCatalog.set(null);
+		// Stop upgrading records.  Anything we haven't gotten to will be
+		// picked up next time.
+		if (recordUpgrader != null) recordUpgrader.cancel();
 		// Then let the system do whatever else it needs to do:
 		super.onTerminate();
 	}
@@ -466,10 +485,13 @@ public class CryptnosApplication extends Application {
         // something less predictable.  Note that if the hashing fails for
         // any reason, we'll still fall back to the raw ID string's bytes.
 		try {
-			MessageDigest hasher = MessageDigest.getInstance(SALT_HASH);
+			MessageDigest hasher = CipherPool.getSaltHasher();
 			for (int i = 0; i < SALT_ITERATION_COUNT; i++)
 				PARAMETER_SALT = hasher.digest(PARAMETER_SALT);
 		} catch (Exception e) {}
+		// Any keys we've cached were derived from the old salt, so they're
+		// no good any more.  Throw them all away:
+		SiteParameters.clearKeyCache();
 	}
 	
 	/**
@@ -487,7 +509,8 @@ public class CryptnosApplication extends Application {
 		// already been built and it's not "dirty", go ahead an call the
 		// listener and give it the list.  There's no point making the user
 		// sit around and wait if they don't have to.
-		if (siteList != null) listener.onSiteListReady(siteList);
+		SiteCatalog catalog = siteCatalog.get();
+		if (catalog != null) listener.onSiteListReady(catalog.getSites());
 		// Otherwise, take note of the caller and listener, then start up
 		// the progress dialog that will do the rest of the work.  The
 		// caller and listener will have to wait for it to finish.  Note,
@@ -508,14 +531,14 @@ public class CryptnosApplication extends Application {
 	 * rebuilt 
 	 * @return True of the list is "dirty", false otherwise
 	 */
-	public boolean isSiteListDirty() { return siteList == null; }
+	public boolean isSiteListDirty() { return siteCatalog.get() == null; }
 	
 	/**
-	 * Set the site list as "dirty" and in need of being rebuilt.  This
-	 * should be called by any Activity that may modify the database, which
-	 * subsequently requires the site list to be refreshed.  Note that an
-	 * activity cannot declare the list to be "clean"; only the application
-	 * itself can do that.
+	 * Set the site list as "dirty" and in need of being rebuilt.  Note that
+	 * an activity cannot declare the list to be "clean"; only the application
+	 * itself can do that.  As of 1.3.5, changes made through the
+	 * ParamsDbAdapter update the site list automatically, so this only needs
+	 * to be called if the database is changed some other way.
 	 */
 	public void setSiteListDirty() {
 		// Originally, this just set a boolean "dirty" flag to true and left
@@ -523,9 +546,13 @@ public class CryptnosApplication extends Application {
 		// to regenerate the list.  Therefore, we'll change this to null out the
 		// site list, which should *really* force the list to be rebuilt.  As a
 		// consequence, we no longer need the dirty flag; we can just null out
-		// the site list when we want to mark it dirty.
-		siteList = null;
-		siteListHash = null;
+		// the site list when we want to mark it dirty.  Now that the list
+		// lives in a catalog, we do the same with it, and bump the version
+		// so a list build already in progress won't put it right back.
+		synchronized (siteCatalogLock) {
+			siteCatalogVersion++;
+			siteCatalog.set(null);
+		}
 	}
 	
 	/**
@@ -537,9 +564,8 @@ public class CryptnosApplication extends Application {
 	 * list has not been built yet.
 	 */
 	public boolean siteListContainsSite(String siteName) {
-		if (siteList != null && siteListHash != null &&
-				siteListHash.containsKey(siteName)) return true;
-		else return false;
+		SiteCatalog catalog = siteCatalog.get();
+		return catalog != null && catalog.containsSite(siteName);
 	}
 	
 	/**
@@ -686,11 +712,11 @@ public class CryptnosApplication extends Application {
 	 * occurs.
 	 */
 	public int getEncodedHashLength(String hash) {
-		if (hashLengths != null) {
-			Integer i = hashLengths.get(hash);
-			if (i != null) return i.intValue();
-			else return -1;
-		} else return -1;
+		// The lengths are precomputed by the HashProvider registry when
+		// each algorithm is registered, so this is a simple lookup:
+		HashProvider provider = HashProvider.forName(hash);
+		if (provider != null) return provider.getEncodedLength();
+		else return -1;
 	}
 	
 	/**
@@ -863,16 +889,26 @@ public class CryptnosApplication extends Application {
                 // Close down the list builder thread:
                 listBuilderThread.setState(ListBuilderThread.STATE_DONE);
                 // Now that we have a list, pass it on to the listener waiting
-                // to get it:
-                listener.onSiteListReady(siteList);
+                // to get it.  Note that we use the catalog the builder made
+                // rather than the current one, since the database may have
+                // changed while it was working and the current one may have
+                // been marked dirty.
+                listener.onSiteListReady(listBuilderThread.getCatalog().getSites());
+                // Now that the user has their list, start rewriting any
+                // records that are still in the old format.  Only one
+                // upgrader runs at a time; if there's nothing to upgrade,
+                // it'll find that out with a single query and quit.
+                if (recordUpgrader == null || !recordUpgrader.isAlive()) {
+                	recordUpgrader = new RecordUpgrader(CryptnosApplication.this,
+                		DBHelper);
+                	recordUpgrader.start();
+                }
             // If we got a "percentage" less than zero, some sort of error
-            // occurred.  Warn the user.  Note that we also set our "dirty"
-            // flag to true to make sure that we force a refresh the next
-            // time the site list is requested.
+            // occurred.  Warn the user.  Note that the builder never saves
+            // a catalog if it fails, so the list stays "dirty" and will be
+            // refreshed the next time it is requested.
             } else if (total < 0) {
                 listBuilderThread.setState(ListBuilderThread.STATE_DONE);
-                siteList = null;
-                siteListHash = null;
             	Toast.makeText(caller, R.string.error_bad_listfetch,
                 		Toast.LENGTH_LONG).show();
             }
@@ -892,6 +928,8 @@ public class CryptnosApplication extends Application {
         int mState;
         int mSiteCount = 0;
         int mCounter = 0;
+        /** The catalog we built, once we're done */
+        private volatile SiteCatalog mCatalog = null;
 
         /**
          * The ListBuilderThread constructor
@@ -909,7 +947,61 @@ public class CryptnosApplication extends Application {
             Message msg = null;
             Bundle b = null;
             
+            // Take note of the catalog version before we read anything.  If
+            // the database changes while we're working, we'll know that what
+            // we read may be out of date.
+            int version = 0;
+            synchronized (siteCatalogLock) { version = siteCatalogVersion; }
             // Asbestos underpants:
+            try
+            {
+            	// Before we do anything else, see if there's a valid site
+            	// index.  If there is, it gives us every site key and name for
+            	// the cost of a single decryption, and we can skip the hard work
+            	// of decrypting every record.  If there isn't, or it doesn't
+            	// match the records, decrypt them the old way and then save a
+            	// new index so we won't have to do this again next time.
+            	Map<String, String> sitesByKey = DBHelper.fetchSiteIndex();
+            	if (sitesByKey == null)
+            	{
+            		sitesByKey = decryptAllSites();
+            		if (mState == STATE_RUNNING) DBHelper.saveSiteIndex(sitesByKey);
+            	}
+    	        // Now build the catalog, which sorts the list to be more
+    	        // presentable to the user.  If nothing has changed in the
+    	        // database since we started, save it so we won't have to do this
+    	        // again.  Otherwise, we'll still hand it to the listener, but
+    	        // the list will stay "dirty" and be rebuilt next time.
+    	        mCatalog = SiteCatalog.build(sitesByKey);
+    	        synchronized (siteCatalogLock) {
+    	        	if (siteCatalogVersion == version) siteCatalog.set(mCatalog);
+    	        }
+                // Now that we're done, send a message to the handler so it
+                // can pass the list back to the listener:
+	        	msg = mHandler.obtainMessage();
+                b = new Bundle();
+                b.putInt("percent_done", 100);
+                msg.setData(b);
+                mHandler.sendMessage(msg);
+            }
+            // If anything blew up, inform the user:
+            catch (Exception e)
+            {
+	        	msg = mHandler.obtainMessage();
+                b = new Bundle();
+                b.putInt("percent_done", -1);
+                msg.setData(b);
+                mHandler.sendMessage(msg);
+            }
+        }
+
+        /**
+         * Build the map of site keys to site names the hard way, by reading
+         * and decrypting every record in the database.
+         * @return A map of site keys to site names
+         * @throws Exception Thrown if the records could not be read
+         */
+        private HashMap<String, String> decryptAllSites() throws Exception {
             Cursor cursor = null;
             try
             {
@@ -919,76 +1011,82 @@ public class CryptnosApplication extends Application {
     	        mSiteCount = cursor.getCount();
     	        // Unfortunately, since we're encrypting all our data, we can't
     	        // take advantage of Android's build in list adapter stuff.  We'll
-    	        // have to do this ourselves.  Start by creating the site list hash
-    	        // table, which we'll use the keys of to store our sites.  (We'll
-    	        // convert this to an array for the caller to use later.) 
-    	        siteListHash = new Hashtable<String, String>();
-    	        // Step through the data:
-    	        while (!cursor.isAfterLast() && mState == STATE_RUNNING)
-    	        {
-    	        	// We only want to add stuff if it doesn't blow up:
-    	        	try
-    	        	{
-    	        		// Reconstitute the parameters from the encrypted string
-    	        		// pulled from the database.  Note that we need the site
-    	        		// key to unlock the data.
-    		        	SiteParameters params =
-    		        		new SiteParameters(theApp,
-    		        			cursor.getString(1),
-    		        			cursor.getString(2));
-    		        	// Get the site name from the parameters and add it to
-    		        	// the site hash:
-    		        	siteListHash.put(params.getSite(), HASH_NULL);
+    	        // have to do this ourselves.  Start by creating a map of site keys
+    	        // to site names, which we'll build the catalog from later.
+    	        final HashMap<String, String> sitesByKey = new HashMap<String, String>();
+    	        // Decrypting each record is expensive, and we used to do it one
+    	        // row at a time right here.  Now we hand the rows off to a
+    	        // RecordDecoder, which decrypts them on as many threads as we
+    	        // have CPU cores.  The decoder only keeps a few rows in flight at
+    	        // a time, so it hands the finished records back to the listener
+    	        // while we're still reading the cursor.  They come back in the
+    	        // same order we added them, on this thread, so we don't need to
+    	        // worry about synchronizing access to the site map.  If the
+    	        // thread gets shut down in the middle, the listener returns
+    	        // false and the decoder throws away whatever's left.
+    	        RecordDecoder decoder = new RecordDecoder(theApp,
+    	        	new RecordDecoder.Listener() {
+    	        	int lastPercent = -1;
+    	        	public boolean onRecordDecoded(int index, SiteParameters params) {
+    	        		// If the record couldn't be decoded, ignore it.
+    	        		// Otherwise, get the site key and name from the
+    	        		// parameters and add them to the map:
+    	        		if (params != null)
+    	        			sitesByKey.put(params.getKey(), params.getSite());
+    	        		mCounter++;
+			        	// Update the progress so far.  Note that we're
+			        	// assuming that this process is 95% of our work
+			        	// rather than 100%; we'll manually update the other
+			        	// 5% below.  (And these numbers may get tweaked
+			        	// later.)  Since records can now come back much
+    	        		// faster than before, we'll only send a message when
+    	        		// the percentage actually changes.
+    	        		int percent = (int)(Math.floor(((double)mCounter /
+    	        			(double)mSiteCount * 95.0d)));
+    	        		if (percent != lastPercent) {
+    	        			lastPercent = percent;
+				        	Message msg = mHandler.obtainMessage();
+			                Bundle b = new Bundle();
+			                b.putInt("percent_done", percent);
+			                msg.setData(b);
+			                mHandler.sendMessage(msg);
+    	        		}
+    	        		return mState == STATE_RUNNING;
     	        	}
-    	        	// If anything blows up, ignore it:
-    	        	catch (Exception e) {}
-		        	// Update the progress so far.  Note that we're
-		        	// assuming that this process is 95% of our work
-		        	// rather than 100%; we'll manually update the other
-		        	// 5% below.  (And these numbers may get tweaked
-		        	// later.)
-		        	msg = mHandler.obtainMessage();
-	                b = new Bundle();
-	                b.putInt("percent_done",
-	                	(int)(Math.floor(((double)mCounter / (double)mSiteCount * 95.0d))));
-	                msg.setData(b);
-	                mHandler.sendMessage(msg);
-	                mCounter++;
-    	        	cursor.moveToNext();
+    	        });
+    	        try
+    	        {
+	    	        while (!cursor.isAfterLast() && mState == STATE_RUNNING)
+	    	        {
+	    	        	if (!decoder.add(cursor.getBlob(1), cursor.getBlob(2),
+	    	        		cursor.getInt(3))) break;
+	    	        	cursor.moveToNext();
+	    	        }
+    	        }
+    	        // If reading the cursor blew up, make sure we shut down the
+    	        // decoder's threads before we pass the error along:
+    	        catch (Exception e)
+    	        {
+    	        	decoder.cancel();
+    	        	throw e;
     	        }
     	        // At this point, we're done with the database.  Go ahead and
     	        // close the cursor:
     	        cursor.close();
-    	        // Now we want to sort the list to be more presentable to the
-    	        // user.  To do that, we need to move the site hash keys into an
-    	        // ordinary String array and take advantage of the built-in
-    	        // array sorting routines.
-    	        Set<String> siteSet = siteListHash.keySet();
-    	        siteList = new String[siteSet.size()];
-    	        siteSet.toArray(siteList);
-    	        java.util.Arrays.sort(siteList, String.CASE_INSENSITIVE_ORDER);
-    	        siteSet = null;
-                // Now that we're done, send a message to the handler so it
-                // can pass the list back to the listener:
-	        	msg = mHandler.obtainMessage();
-                b = new Bundle();
-                b.putInt("percent_done", 100);
-                msg.setData(b);
-                mHandler.sendMessage(msg);
+    	        cursor = null;
+    	        // Now collect whatever the decoder is still working on:
+    	        decoder.decodeAll();
+    	        return sitesByKey;
             }
-            // If anything blew up, inform the user:
-            catch (Exception e)
+            // If anything blew up, make sure the cursor gets closed before
+            // we pass the error along:
+            finally
             {
             	if (cursor != null) 
             	{
 	    	        //caller.stopManagingCursor(cursor);
 	    	        cursor.close();
             	}
-	        	msg = mHandler.obtainMessage();
-                b = new Bundle();
-                b.putInt("percent_done", -1);
-                msg.setData(b);
-                mHandler.sendMessage(msg);
             }
         }
         
@@ -997,6 +1095,11 @@ public class CryptnosApplication extends Application {
             mState = state;
         }
 
+        /** Get the catalog we built, or null if we're not done yet. */
+        public SiteCatalog getCatalog() {
+        	return mCatalog;
+        }
+
     }
     
     /**
@@ -28,6 +28,10 @@
  * SiteListActivity handles much of the QR export process, the main menu does
  * most of the import process.  Also performed minor tweaks to existing code.
  * 
+ * UPDATES FOR 1.3.5:  Importing a site from a QR code no longer marks the site
+ * list as dirty.  The application now updates the list itself whenever a site
+ * is saved to the database.
+ * 
  * "QR code" is a registered trademark of Denso Wave Incorporated.
  * 
  * This program is Copyright 2011, Jeffrey T. Darlington.
@@ -74,7 +78,7 @@ import android.widget.AdapterView.OnItemClickListener;
 /**
  * The main menu activity for the Cryptnos Android application. 
  * @author Jeffrey T. Darlington
- * @version 1.3.0
+ * @version 1.3.5
  * @since 1.0
  */
 public class CryptnosMainMenu extends Activity implements SiteListListener {
@@ -374,9 +378,9 @@ public class CryptnosMainMenu extends Activity implements SiteListListener {
 							try {
 								if (siteParamsFromQRCode != null) {
 									// Try to add the record to the database:
+									// Note that the site list is updated for us
+									// once the record is saved:
 									mDBHelper.createRecord(siteParamsFromQRCode);
-									// Set the site list to "dirty" so it will be rebuilt:
-									theApp.setSiteListDirty();
 									// Notify the user of our success:
 									String message = getResources().getString(R.string.mainmenu_dialog_import_success);
 									message = message.replace(getResources().getString(R.string.meta_replace_token),
@@ -650,9 +654,6 @@ public class CryptnosMainMenu extends Activity implements SiteListListener {
 					else {
 						// Try to add the site to the database:
 						mDBHelper.createRecord(siteParamsFromQRCode);
-						// Mark the site list as "dirty" so it will get rebuilt the next
-						// time it's needed:
-						theApp.setSiteListDirty();
 						// Notify the user of our success:
 						String message = getResources().getString(R.string.mainmenu_dialog_import_success);
 						message = message.replace(getResources().getString(R.string.meta_replace_token),
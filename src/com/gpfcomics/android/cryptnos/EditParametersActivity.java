@@ -34,6 +34,13 @@
  *
  * UPDATES FOR 1.3.1:  Enabled "clear passwords on focus loss" setting.
  *
+ * UPDATES FOR 1.3.5:  The cached site parameter encryption keys are now
+ * cleared whenever we lose focus, whatever the clear passwords setting says.
+ * Saving a new site no longer
+ * marks the site list as dirty; the application now updates the list itself
+ * whenever a site is saved.  Existing records are now read in whatever record
+ * format version the database says they're stored in, as raw bytes.
+ *
  * This program is Copyright 2012, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -81,7 +88,7 @@ import android.widget.Toast;
  * parameters are saved to the database and the generated password is
  * displayed to the user.
  * @author Jeffrey T. Darlington
- * @version 1.3.1
+ * @version 1.3.5
  * @since 1.0
  */
 public class EditParametersActivity extends Activity {
@@ -241,8 +248,9 @@ public class EditParametersActivity extends Activity {
     	        				// everything back out.
     	        				SiteParameters params =
     	        					new SiteParameters(theApp,
-    	        						c.getString(1),
-    	        						c.getString(2));
+    	        						c.getBlob(1),
+    	        						c.getBlob(2),
+    	        						c.getInt(3));
     	        				// Populate the GUI elements with the old data.
     	        				// Note that the spinners need special treatment, and
     	        				// that the site box is disabled from editing.
@@ -400,13 +408,8 @@ public class EditParametersActivity extends Activity {
 								boolean success = true;
 								if (rowID != ParamsDbAdapter.DB_ERROR)
 									dbHelper.updateRecord(rowID, params);
-								else {
-									// If we're adding a record, set the site list
-									// on the main app to dirty so it will get
-									// rebuilt the next time it's needed:
+								else
 									rowID = dbHelper.createRecord(params);
-									theApp.setSiteListDirty();
-								}
 								if (success && rowID != ParamsDbAdapter.DB_ERROR)
 								{
 									messages = messages.concat(" ").concat(getResources().getString(R.string.edit_save_success));
@@ -610,6 +613,20 @@ public class EditParametersActivity extends Activity {
         super.onResume();
 	}
 	
+	@Override
+	public void onPause()
+	{
+		// Throw away any cached encryption keys whenever we lose focus.  We
+		// do this no matter what the user's clear passwords preference says;
+		// that preference is about what's showing on the screen, but the
+		// keys are never shown, so there's no reason for them to outlive the
+		// time we're actually in front of the user.  It also happens on
+		// configuration changes, but all that costs us is deriving a key
+		// again the next time we need it.
+		SiteParameters.clearKeyCache();
+		super.onPause();
+	}
+	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
     	// Add the "Help" menu item:
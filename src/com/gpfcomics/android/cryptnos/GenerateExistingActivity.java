@@ -33,6 +33,12 @@
  * focus.  Pressing Enter in the master password box now triggers the Generate
  * butotn event.
  *
+ * UPDATES FOR 1.3.5:  The cached site parameter encryption keys are now
+ * cleared whenever we lose focus, whatever the clear passwords setting says.
+ * Records are now read in
+ * whatever record format version the database says they're stored in, as
+ * raw bytes.
+ *
  * This program is Copyright 2012, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -73,7 +79,7 @@ import android.widget.Toast;
  * view, allowing the user to generate the password for a given site without
  * worrying about fat-fingering something and screwing up the site's settings. 
  * @author Jeffrey T. Darlington
- * @version 1.3.1
+ * @version 1.3.5
  * @since 1.0
  */
 public class GenerateExistingActivity extends Activity {
@@ -179,8 +185,9 @@ public class GenerateExistingActivity extends Activity {
             				// site key and the full encrypted string to get
             				// everything back out.
             				params = new SiteParameters(theApp,
-            						c.getString(1),
-            						c.getString(2));
+            						c.getBlob(1),
+            						c.getBlob(2),
+            						c.getInt(3));
             				// Populate the other parameters label with the
             				// parameters other than the passphrase.  All of this
             				// is essentially read-only info in this case, so
@@ -311,6 +318,20 @@ public class GenerateExistingActivity extends Activity {
         super.onResume();
 	}
 	
+	@Override
+	public void onPause()
+	{
+		// Throw away any cached encryption keys whenever we lose focus.  We
+		// do this no matter what the user's clear passwords preference says;
+		// that preference is about what's showing on the screen, but the
+		// keys are never shown, so there's no reason for them to outlive the
+		// time we're actually in front of the user.  It also happens on
+		// configuration changes, but all that costs us is deriving a key
+		// again the next time we need it.
+		SiteParameters.clearKeyCache();
+		super.onPause();
+	}
+	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
     	// Add the "Help" menu item:
@@ -0,0 +1,408 @@
+/* HashProvider.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:
+ * REQUIRED BY:   SiteParameters, CryptnosApplication
+ *
+ * This class provides a central registry of the cryptographic hash algorithms
+ * Cryptnos can use to generate passwords.  Originally, the code to pick a hash
+ * engine was a long chain of String.compareTo() calls duplicated between
+ * SiteParameters.generatePassword() and CryptnosApplication.onCreate(), and
+ * every password generation looked up or constructed a brand new engine from
+ * scratch.
+ *
+ * Now each algorithm is represented by a HashProvider, which is registered once
+ * under its name (the same name stored in the site parameters and shown in the
+ * hash Spinner) and assigned a numeric ID.  Looking up a provider by either
+ * is a simple table lookup.  Each provider knows its raw digest length and the
+ * length of its Base64-encoded digest, computed once at registration, and keeps
+ * one reusable engine per thread so generating a password never has to resolve
+ * or construct a new one.  The providers also own the iterative hash "kernel"
+ * that feeds each digest back into the engine, alternating between two
+ * preallocated buffers.  The kernel reports its progress through the small
+ * IterationListener interface rather than a ProgressReporter directly, so
+ * this class doesn't depend on anything Android-specific and can be tested
+ * on a plain Java VM.
+ *
+ * Out of the box, we register the five hashes built into Java (MD5, SHA-1, and
+ * the SHA-2 trio) using the internal MessageDigest engines and the three Bouncy
+ * Castle engines (RIPEMD-160, Tiger, and Whirlpool), the same set supported by
+ * the .NET version of Cryptnos.  Additional algorithms can be added by passing
+ * a new JCAHashProvider or a BouncyCastleHashProvider subclass to register().
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.security.MessageDigest;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.TigerDigest;
+import org.bouncycastle.crypto.digests.WhirlpoolDigest;
+
+/**
+ * A registry of the cryptographic hash algorithms available for password
+ * generation.  Each HashProvider wraps a single algorithm, offering reusable
+ * per-thread engines and precomputed digest lengths.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public abstract class HashProvider {
+
+	/**
+	 * The interface for anyone who wants to hear about the progress of an
+	 * iterative hash chain.  ProgressReporter implements this to keep the
+	 * password generation dialog up to date.
+	 * @author Jeffrey T. Darlington
+	 * @version 1.3.5
+	 * @since 1.3.5
+	 */
+	public interface IterationListener {
+		/**
+		 * Called after each iteration of the hash chain
+		 * @param current The iteration that was just completed, counting
+		 * from zero
+		 */
+		public void update(int current);
+	}
+
+	/* Private Members **********************************************************/
+
+	/** The registered providers, keyed by algorithm name */
+	private static final Hashtable<String, HashProvider> providersByName =
+		new Hashtable<String, HashProvider>();
+	/** The registered providers, indexed by their numeric ID */
+	private static final Vector<HashProvider> providersByID =
+		new Vector<HashProvider>();
+
+	/** The name of this algorithm, as stored in the site parameters */
+	private final String name;
+	/** The numeric ID of this provider, assigned when it is registered */
+	private int id = -1;
+	/** The length of this algorithm's raw digest in bytes */
+	private int digestLength = 0;
+	/** The length of this algorithm's digest once Base64-encoded */
+	private int encodedLength = 0;
+
+	/* Static Initializer *****************************************************/
+
+	static {
+		// Register the built-in Java hashes first.  We'll assume that since
+		// these are built-in, they must be optimized compared to external
+		// definitions:
+		registerQuietly(new JCAHashProvider("MD5"));
+		registerQuietly(new JCAHashProvider("SHA-1"));
+		registerQuietly(new JCAHashProvider("SHA-256"));
+		registerQuietly(new JCAHashProvider("SHA-384"));
+		registerQuietly(new JCAHashProvider("SHA-512"));
+		// Then the Bouncy Castle ones:
+		registerQuietly(new BouncyCastleHashProvider("RIPEMD-160") {
+			protected Digest createDigest() { return new RIPEMD160Digest(); }
+		});
+		registerQuietly(new BouncyCastleHashProvider("Tiger") {
+			protected Digest createDigest() { return new TigerDigest(); }
+		});
+		registerQuietly(new BouncyCastleHashProvider("Whirlpool") {
+			protected Digest createDigest() { return new WhirlpoolDigest(); }
+		});
+	}
+
+	/* Constructor ************************************************************/
+
+	/**
+	 * Create a new HashProvider.  Note that the provider isn't usable until it
+	 * has been passed to register().
+	 * @param name The name of the hash algorithm
+	 */
+	protected HashProvider(String name)
+	{
+		this.name = name;
+	}
+
+	/* Public Static Methods **************************************************/
+
+	/**
+	 * Register a new hash algorithm.  Once registered, the provider can be
+	 * looked up by name or by the ID returned here.  If a provider is already
+	 * registered under the same name, it will be replaced but keep its ID.
+	 * @param provider The HashProvider to register
+	 * @return The numeric ID assigned to the provider
+	 * @throws Exception Thrown if the underlying hash engine is not available
+	 */
+	public static synchronized int register(HashProvider provider)
+		throws Exception
+	{
+		// Work out our digest lengths up front so nobody has to do it later.
+		// This also proves the engine actually exists on this platform.  The
+		// Base64-encoded length formula comes from the Base64 Wikipedia
+		// article:  https://secure.wikimedia.org/wikipedia/en/wiki/Base64
+		provider.digestLength = provider.computeDigestLength();
+		provider.encodedLength = (provider.digestLength + 2 -
+			((provider.digestLength + 2) % 3)) / 3 * 4;
+		HashProvider old = providersByName.get(provider.name);
+		if (old != null) {
+			provider.id = old.id;
+			providersByID.set(old.id, provider);
+		} else {
+			provider.id = providersByID.size();
+			providersByID.add(provider);
+		}
+		providersByName.put(provider.name, provider);
+		return provider.id;
+	}
+
+	/**
+	 * Get the provider for the specified hash algorithm
+	 * @param name The name of the hash algorithm
+	 * @return The matching HashProvider, or null if no such algorithm has
+	 * been registered
+	 */
+	public static HashProvider forName(String name)
+	{
+		if (name == null) return null;
+		return providersByName.get(name);
+	}
+
+	/**
+	 * Get the provider with the specified numeric ID
+	 * @param id The ID of the provider
+	 * @return The matching HashProvider, or null if the ID is out of range
+	 */
+	public static HashProvider forID(int id)
+	{
+		try { return providersByID.get(id); }
+		catch (ArrayIndexOutOfBoundsException e) { return null; }
+	}
+
+	/* Public Methods *********************************************************/
+
+	/** Return the name of this hash algorithm. */
+	public String getName() { return name; }
+	/** Return the numeric ID of this provider, or -1 if not registered. */
+	public int getID() { return id; }
+	/** Return the length of this algorithm's raw digest in bytes. */
+	public int getDigestLength() { return digestLength; }
+	/** Return the length of this algorithm's digest once Base64-encoded. */
+	public int getEncodedLength() { return encodedLength; }
+
+	/**
+	 * Run the iterative hash chain used to generate passwords.  The seed is
+	 * hashed, then the result is fed back into the engine, for the specified
+	 * number of iterations.  The engine is reused from the calling thread's
+	 * cache, and the chain alternates between two preallocated buffers rather
+	 * than allocating a new one for every iteration.
+	 * @param seed The initial input to the hash chain.  This is never modified.
+	 * @param iterations The number of iterations to perform
+	 * @param progress If not null, this listener will be notified of each
+	 * completed iteration
+	 * @return The final digest of the hash chain
+	 * @throws Exception Thrown if any error occurs while hashing
+	 */
+	public abstract byte[] iterate(byte[] seed, int iterations,
+		IterationListener progress) throws Exception;
+
+	/* Protected Methods ******************************************************/
+
+	/**
+	 * Determine the length of this algorithm's raw digest.  This is only
+	 * called once, when the provider is registered.
+	 * @return The digest length in bytes
+	 * @throws Exception Thrown if the underlying hash engine is not available
+	 */
+	protected abstract int computeDigestLength() throws Exception;
+
+	/* Private Static Methods *************************************************/
+
+	/**
+	 * Register one of our built-in providers, ignoring any failures.  If the
+	 * platform doesn't support one of the algorithms, it will simply not be
+	 * available.
+	 * @param provider The HashProvider to register
+	 */
+	private static void registerQuietly(HashProvider provider)
+	{
+		try { register(provider); }
+		catch (Exception e) {}
+	}
+
+	/* Provider Implementations ***********************************************/
+
+	/**
+	 * A HashProvider that wraps one of the MessageDigest engines built into
+	 * Java.
+	 * @author Jeffrey T. Darlington
+	 * @version 1.3.5
+	 * @since 1.3.5
+	 */
+	public static class JCAHashProvider extends HashProvider {
+
+		/** Our per-thread cache of MessageDigest engines.  If the engine can't
+		 *  be created, the cached value will be null. */
+		private final ThreadLocal<MessageDigest> engines =
+			new ThreadLocal<MessageDigest>() {
+				@Override
+				protected MessageDigest initialValue() {
+					try { return MessageDigest.getInstance(getName()); }
+					catch (Exception e) { return null; }
+				}
+			};
+
+		/**
+		 * Create a new JCAHashProvider
+		 * @param name The name of the algorithm, as passed to
+		 * MessageDigest.getInstance()
+		 */
+		public JCAHashProvider(String name)
+		{
+			super(name);
+		}
+
+		/**
+		 * Get this thread's MessageDigest engine, reset and ready to use
+		 * @return A MessageDigest
+		 * @throws Exception Thrown if the engine is not available
+		 */
+		public MessageDigest getEngine() throws Exception
+		{
+			MessageDigest hasher = engines.get();
+			if (hasher == null) throw new Exception("Hash " + getName() +
+				" is not available");
+			hasher.reset();
+			return hasher;
+		}
+
+		@Override
+		public byte[] iterate(byte[] seed, int iterations,
+			IterationListener progress) throws Exception
+		{
+			MessageDigest hasher = getEngine();
+			int length = getDigestLength();
+			byte[] bufferA = new byte[length];
+			byte[] bufferB = new byte[length];
+			byte[] in = seed;
+			int inLength = seed.length;
+			byte[] out = null;
+			for (int i = 0; i < iterations; i++)
+			{
+				// Write into whichever buffer we didn't just read from.  On
+				// the first pass the input is the seed, which we never
+				// scribble on.
+				out = (in == bufferA) ? bufferB : bufferA;
+				hasher.update(in, 0, inLength);
+				hasher.digest(out, 0, length);
+				in = out;
+				inLength = length;
+				if (progress != null) progress.update(i);
+			}
+			return in;
+		}
+
+		@Override
+		protected int computeDigestLength() throws Exception
+		{
+			// Some providers don't report their digest length, so if we don't
+			// get a useful value, hash nothing and measure the result:
+			MessageDigest hasher = getEngine();
+			int length = hasher.getDigestLength();
+			if (length <= 0) length = hasher.digest().length;
+			return length;
+		}
+	}
+
+	/**
+	 * A HashProvider that wraps one of the Bouncy Castle Digest engines.
+	 * Subclasses only need to say how to create a new engine.
+	 * @author Jeffrey T. Darlington
+	 * @version 1.3.5
+	 * @since 1.3.5
+	 */
+	public static abstract class BouncyCastleHashProvider extends HashProvider {
+
+		/** Our per-thread cache of Digest engines */
+		private final ThreadLocal<Digest> engines = new ThreadLocal<Digest>() {
+			@Override
+			protected Digest initialValue() { return createDigest(); }
+		};
+
+		/**
+		 * Create a new BouncyCastleHashProvider
+		 * @param name The name of the algorithm
+		 */
+		public BouncyCastleHashProvider(String name)
+		{
+			super(name);
+		}
+
+		/**
+		 * Create a brand new instance of this algorithm's Digest engine.  This
+		 * is called at most once per thread.
+		 * @return A new Digest
+		 */
+		protected abstract Digest createDigest();
+
+		/**
+		 * Get this thread's Digest engine, reset and ready to use
+		 * @return A Digest
+		 */
+		public Digest getEngine()
+		{
+			Digest hasher = engines.get();
+			hasher.reset();
+			return hasher;
+		}
+
+		@Override
+		public byte[] iterate(byte[] seed, int iterations,
+			IterationListener progress) throws Exception
+		{
+			// This is essentially the same as the MessageDigest version above,
+			// only the method names are different.  Note that doFinal() resets
+			// the engine for us after each pass.
+			Digest hasher = getEngine();
+			int length = getDigestLength();
+			byte[] bufferA = new byte[length];
+			byte[] bufferB = new byte[length];
+			byte[] in = seed;
+			int inLength = seed.length;
+			byte[] out = null;
+			for (int i = 0; i < iterations; i++)
+			{
+				out = (in == bufferA) ? bufferB : bufferA;
+				hasher.update(in, 0, inLength);
+				hasher.doFinal(out, 0);
+				in = out;
+				inLength = length;
+				if (progress != null) progress.update(i);
+			}
+			return in;
+		}
+
+		@Override
+		protected int computeDigestLength()
+		{
+			return getEngine().getDigestSize();
+		}
+	}
+
+}
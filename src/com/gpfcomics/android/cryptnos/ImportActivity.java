@@ -40,6 +40,14 @@
  * for the user to selectively import site parameters from a file.  Added view state
  * functionality to better handle configuration changes.
  * 
+ * UPDATES FOR 1.3.5:  The database insert worker now encrypts the selected
+ * sites ahead of time on a pool of worker threads and writes them to the
+ * database in batches, one transaction per batch, rather than encrypting and
+ * committing each site on its own.  Checking whether the import will overwrite
+ * any existing sites is now done by looking up the site keys in the database,
+ * so we no longer need to build (and decrypt) the entire site list first.
+ * The encrypted records are now passed to the database as raw bytes.
+ * 
  * This program is Copyright 2011, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -96,10 +104,10 @@ import android.widget.AdapterView.OnItemSelectedListener;
  * but this class will be responsible for gathering the inputs and creating
  * the progress dialog that the handler will update.
  * @author Jeffrey T. Darlington
- * @version 1.3.0
+ * @version 1.3.5
  * @since 1.0
  */
-public class ImportActivity extends Activity implements ImportListener, SiteListListener {
+public class ImportActivity extends Activity implements ImportListener {
 
 	/** A constant indicating that we should show a progress dialog during the
 	 *  process of importing sites from a file. */
@@ -116,6 +124,11 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
 	/** A constant indicating the Help option menu item. */
 	public static final int OPTMENU_HELP = Menu.FIRST;
 
+	/** The number of sites to write to the database in each transaction when
+	 *  importing.  Bigger batches mean fewer commits, but the progress dialog
+	 *  only updates once per batch. */
+	private static final int DB_WRITE_BATCH_SIZE = 50;
+
 	/** A TextView that contains our basic instructions for
 	 *  this activity. */
 	private TextView labelInstructions = null;
@@ -379,10 +392,6 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
 				}
 			}
 		});
-
-        // Finally, since we need to know what sites we may potentially overwrite,
-        // go ahead and get the current site list now:
-        theApp.requestSiteList(this, this);
     }
     
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -429,12 +438,6 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
     	// Determine which dialog to show:
     	switch (id)
     	{
-			// The site list building progress dialog is actually handled by
-			// the application, but we need to attach it here to actually get
-			// it to display.  If we get this value, pass the buck:
-			case CryptnosApplication.DIALOG_PROGRESS:
-				dialog = theApp.onCreateDialog(id);
-				break;
 	    	// The progress dialog does the work of the actual export.  We'll
 	    	// create this dialog, create an exporter object and pass a
 	    	// reference to the dialog along with it. 
@@ -621,22 +624,21 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
     	// Were any sites selected?
     	if (selectedSiteCount > 0) {
     		// Check to see if any of the imported sites will overwrite an
-    		// existing site.  We'll do this by looping through the imported
-    		// site list, check to see if that site is currently selected.  If
-    		// it is, we'll check the master list to see if the site token is
-    		// already in there.  Note that if we encounter something that will
-    		// be overwritten, we'll bail out early since there's no point in
-    		// continuing the loop.
+    		// existing site.  We used to do this by searching the master site
+    		// list, but that meant decrypting every site in the database first.
+    		// Since the site key is generated from the site name alone, we can
+    		// just collect the keys of the selected sites and ask the database
+    		// if it already has any of them.  If the lookup fails for some
+    		// reason, we'll play it safe and assume something will be
+    		// overwritten so the user gets warned.
     		boolean willOverwrite = false;
-    		for (int j = 0; j < importedSites.length; j++) {
-    			if (selectedSites[j]) {
-    				SiteParameters site = (SiteParameters)importedSites[j];
-    				if (theApp.siteListContainsSite(site.getSite())) {
-    					willOverwrite = true;
-    					break;
-    				}
-    			}
-    		}
+    		try {
+	    		ArrayList<String> keys = new ArrayList<String>(selectedSiteCount);
+	    		for (int j = 0; j < importedSites.length; j++)
+	    			if (selectedSites[j])
+	    				keys.add(((SiteParameters)importedSites[j]).getKey());
+	    		willOverwrite = !dbHelper.containsKeys(keys).isEmpty();
+    		} catch (Exception e) { willOverwrite = true; }
     		// If we'll overwrite something, show the warning dialog.  Otherwise,
     		// move on to the import.
     		if (willOverwrite) showDialog(DIALOG_OVERWRITE_WARNING);
@@ -651,8 +653,8 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
     
     /**
      * Perform the final step of actually importing the selected sites from the file
-     * into the database.  Note that this method assumes the site list is populated
-     * and the user has selected one or more sites to import.
+     * into the database.  Note that this method assumes the user has selected one or
+     * more sites to import.
      */
     private void doFinalImport() {
     	// Originally, this method did the actual work of inserting the data into the
@@ -682,14 +684,6 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
 		}
 	}
 
-	public void onSiteListReady(String[] siteList) {
-		// This has to be the simplest site list request handling in the entire
-		// app.  We don't really care about the result of the site list as we
-		// aren't going to do anything with it.  However, we want to make sure
-		// it gets built so we can search the list (through the main app class)
-		// and see if we're going to overwrite something.
-	}
-    
 	public Object onRetainNonConfigurationInstance() {
 		// Preserve our view state:
 		final ImportViewState state = new ImportViewState(
@@ -808,7 +802,7 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
 	 * selected sites into the database.  Since this process can actually take
 	 * a while, it needs to be done outside the UI thread.
 	 * @author Jeffrey T. Darlington
-	 * @version 1.3.0
+	 * @version 1.3.5
 	 * @since 1.3.0
 	 */
 	private class DBInsertWorker extends Thread
@@ -821,41 +815,73 @@ public class ImportActivity extends Activity implements ImportListener, SiteList
     	}
     	
     	public void run() {
-            Message msg = null;
-            Bundle b = null;
-    		// Keep track of how many total sites we'll try to import and how
+            // Keep track of how many total sites we'll try to import and how
             // many we successfully import:
     		int total_count = 0;
     		int success_count = 0;
+    		RecordEncoder encoder = null;
             try {
-        		// Whatever happens here, we should probably force the site list to be
-        		// rebuilt the next time it is needed:
-        		theApp.setSiteListDirty();
-        		// Loop through the list of imported sites.  If the site was selected,
-        		// try to add it to the database and count it.  Send a message to the
-        		// handler for each item in the list.
+        		// Note that we no longer need to mark the site list as dirty here.
+        		// The database tells the application about each site as it's
+        		// written, and the application updates the list to match.
+        		// Hand all the selected sites off to the encoder.  Generating the
+        		// site keys and encrypting the parameters are the slow parts, so
+        		// the encoder's worker threads can get started on them while we
+        		// write the finished ones to the database below.
+        		encoder = new RecordEncoder();
+        		ArrayList<SiteParameters> selected = new ArrayList<SiteParameters>(selectedSiteCount);
         		for (int i = 0; i < importedSites.length; i++) {
         			if (selectedSites[i]) {
-        				total_count++;
-        				if (dbHelper.createRecord((SiteParameters)importedSites[i]) !=
-        						ParamsDbAdapter.DB_ERROR) success_count++;
+        				selected.add((SiteParameters)importedSites[i]);
+        				encoder.add((SiteParameters)importedSites[i]);
         			}
-            		msg = mHandler.obtainMessage();
-	                b = new Bundle();
-	                b.putInt("success_count", success_count);
-	                b.putInt("total_count", total_count);
-	                msg.setData(b);
-	                mHandler.sendMessage(msg);
         		}
+        		// Now collect the encrypted records in order and write them to the
+        		// database in batches.  Each batch is written in a single
+        		// transaction, which is much faster than committing each site on
+        		// its own.  We update the progress dialog once per batch.
+        		SiteParameters[] sites = new SiteParameters[DB_WRITE_BATCH_SIZE];
+        		byte[][] params = new byte[DB_WRITE_BATCH_SIZE][];
+        		int batch_count = 0;
+        		for (int i = 0; i < encoder.size(); i++) {
+        			total_count++;
+        			// If a site couldn't be encrypted, we'll just leave it out.
+        			// It still counts toward the total, just not the successes.
+        			byte[] record = encoder.get(i);
+        			if (record != null) {
+        				sites[batch_count] = selected.get(i);
+        				params[batch_count] = record;
+        				batch_count++;
+        			}
+        			if (batch_count == DB_WRITE_BATCH_SIZE || i == encoder.size() - 1) {
+        				success_count += dbHelper.createRecords(sites, params, batch_count);
+        				batch_count = 0;
+        				sendProgress(success_count, total_count);
+        			}
+        		}
+        		// If nothing was selected, the loop above never reported anything,
+        		// so let the handler know we're done:
+        		if (encoder.size() == 0) sendProgress(0, 0);
         	// If something blew up, send a "total" of -1 to signal the error:
             } catch (Exception e) {
-        		msg = mHandler.obtainMessage();
-                b = new Bundle();
-                b.putInt("success_count", success_count);
-                b.putInt("total_count", -1);
-                msg.setData(b);
-                mHandler.sendMessage(msg);
+            	sendProgress(success_count, -1);
             }
+            finally { if (encoder != null) encoder.cancel(); }
+    	}
+
+    	/**
+    	 * Send a progress update to the handler
+    	 * @param success_count The number of sites successfully imported so far
+    	 * @param total_count The number of sites we've tried to import so far, or
+    	 * -1 if an error occurred
+    	 */
+    	private void sendProgress(int success_count, int total_count) {
+    		Message msg = mHandler.obtainMessage();
+            Bundle b = new Bundle();
+            b.putInt("success_count", success_count);
+            b.putInt("total_count", total_count);
+            msg.setData(b);
+            mHandler.sendMessage(msg);
     	}
 	}
 	
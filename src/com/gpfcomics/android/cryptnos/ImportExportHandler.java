@@ -41,6 +41,28 @@
  * UPDATES FOR 1.3.0  Changes to support new import functionality to let the
  * user pick and choose which sites from a file to import.
  * 
+ * UPDATES FOR 1.3.5:  The XML format cipher now uses AESFastEngine, a table-
+ * driven AES implementation, instead of the much slower general Rijndael
+ * engine.  The output is identical; only the speed has changed.  The XML
+ * importer now reads and decrypts the file in multi-block chunks rather than
+ * one cipher block at a time, so the cipher can process whole runs of blocks
+ * at once.  The exporter now passes each record's format version along to the
+ * RecordDecoder, and reads the site keys and records as raw bytes.
+ * 
+ * The XML importer no longer decrypts the whole file into memory before
+ * unzipping and parsing it.  Instead, the file, cipher, unzipper and XML
+ * parser are chained together as streams so the import runs in a small, fixed
+ * amount of memory.  That makes the memory check and the 2GB file size limit
+ * unnecessary for XML imports, so they're gone.  The exporter works the same
+ * way in reverse:  the XML is written through the compressor and cipher
+ * straight out to the file, so exports no longer need a memory check either.
+ * The exporter also no longer queries the database once per site; it makes a
+ * single pass over the whole table, a batch of rows at a time, and picks out
+ * the sites it wants by key.  The records it finds are decrypted in parallel
+ * by a RecordDecoder, which uses all of the device's CPU cores.  The salt
+ * hashes and the old format key factory now come from the per-thread
+ * CipherPool.
+ * 
  * This program is Copyright 2011, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -60,15 +82,16 @@
 package com.gpfcomics.android.cryptnos;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.PrintStream;
 import java.security.MessageDigest;
 import java.security.spec.AlgorithmParameterSpec;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -81,8 +104,10 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.bouncycastle.crypto.BufferedBlockCipher;
-import org.bouncycastle.crypto.engines.RijndaelEngine;
+import org.bouncycastle.crypto.engines.AESFastEngine;
 import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.io.CipherOutputStream;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
@@ -112,7 +137,7 @@ import android.widget.Toast;
  * work.  Note that it updates UI elements and requires references back to the
  * calling activity and a ProgressDialog it controls.
  * @author Jeffrey T. Darlington
- * @version 1.3.0
+ * @version 1.3.5
  * @since 1.0
  */
 public class ImportExportHandler {
@@ -134,6 +159,21 @@ public class ImportExportHandler {
 
 	/** The size of the AES encryption intialization vector (IV) in bits */
 	private static final int IV_SIZE = 128;
+
+	/** The size in bytes of the buffers used along the XML export stream
+	 *  chain.  This is big enough that the deflater and cipher see large
+	 *  runs of data rather than one line of XML at a time. */
+	private static final int STREAM_BUFFER_SIZE = 8192;
+
+	/** The number of cipher blocks we'll read and decrypt at a time when
+	 *  importing.  Feeding the cipher a few hundred contiguous blocks per
+	 *  processBytes() call lets it run them as one tight loop. */
+	private static final int CIPHER_CHUNK_BLOCKS = 256;
+
+	/** The number of database rows the exporter reads at a time.  Each batch
+	 *  is a single short query, so the database is never held up for long
+	 *  while we're busy decrypting and writing out the file. */
+	private static final int EXPORT_BATCH_SIZE = 50;
 	
 	// Private Variables **************************************************
 
@@ -290,7 +330,7 @@ public class ImportExportHandler {
 			// *MUST* be the default character encoding for the platform for
 			// it to be backward-compatible.
 			byte[] salt = password.getBytes();
-			MessageDigest hasher = MessageDigest.getInstance("SHA-512");
+			MessageDigest hasher = CipherPool.getHasher("SHA-512");
 			for (int i = 0; i < CryptnosApplication.SALT_ITERATION_COUNT; i++)
 				salt = hasher.digest(salt);
 			
@@ -304,9 +344,9 @@ public class ImportExportHandler {
 			PBEKeySpec pbeKeySpec =	new PBEKeySpec(password.toCharArray(),
 				salt, CryptnosApplication.KEY_ITERATION_COUNT,
 				CryptnosApplication.KEY_LENGTH);
-			// Next we'll need a key factory to actually build the key:
-			SecretKeyFactory keyFac =
-				SecretKeyFactory.getInstance(CryptnosApplication.KEY_FACTORY);
+			// Next we'll need a key factory to actually build the key.  We'll
+			// reuse this thread's factory from the CipherPool:
+			SecretKeyFactory keyFac = CipherPool.getKeyFactory();
 			// The key is generated from the key factory:
 			SecretKey key = keyFac.generateSecret(pbeKeySpec);
 			// The cipher needs some parameter specs to know how to use
@@ -314,7 +354,10 @@ public class ImportExportHandler {
 			AlgorithmParameterSpec aps = new PBEParameterSpec(salt,
 					CryptnosApplication.KEY_ITERATION_COUNT);
 			// Now that we have all of this information, actually start
-			// creating the cipher:
+			// creating the cipher.  Note that we *don't* take this one from
+			// the CipherPool.  The old format importer holds on to this
+			// cipher for the whole import, and saving each imported site
+			// uses this thread's pooled cipher in the meantime.
 			Cipher cipher = Cipher.getInstance(CryptnosApplication.KEY_FACTORY);
 			// For our purposes, we're combining the creation of encryption
 			// and decryption ciphers into one method.  So take the mode
@@ -358,7 +401,7 @@ public class ImportExportHandler {
 		byte[] salt = password.getBytes(CryptnosApplication.TEXT_ENCODING_UTF8);
 		// Try to hash password multiple times using a really strong hash.
 		// This should give us some really random-ish data for the salt.
-		MessageDigest hasher = MessageDigest.getInstance("SHA-512");
+		MessageDigest hasher = CipherPool.getHasher("SHA-512");
 		for (int i = 0; i < SALT_ITERATION_COUNT; i++)
 		{
 			// Java notes:  This is a lot easier than in .NET.  We
@@ -418,8 +461,13 @@ public class ImportExportHandler {
 			ParametersWithIV iv =
 				((ParametersWithIV)generator.generateDerivedParameters(KEY_SIZE, IV_SIZE));
 			// Create our AES (i.e. Rijndael) engine and create the actual
-			// cipher object from it.  We'll use CBC padding.
-			RijndaelEngine engine = new RijndaelEngine();
+			// cipher object from it.  We'll use CBC padding.  Note that we
+			// originally used the generic RijndaelEngine here, which works
+			// out its round math with log table lookups and is painfully slow
+			// on big exports.  AESFastEngine produces exactly the same output
+			// for 128-bit blocks, which is all AES uses anyway, but does each
+			// round with a handful of precomputed table lookups.
+			AESFastEngine engine = new AESFastEngine();
 			BufferedBlockCipher cipher =
 				new PaddedBufferedBlockCipher(new CBCBlockCipher(engine));
 			// Pick our mode, encryption or decryption:
@@ -430,50 +478,6 @@ public class ImportExportHandler {
 		catch (Exception e) { throw e; }
 	}
 	
-	/**
-	 * Given a cipher and the size of an input file, determine whether or not we have
-	 * enough memory on hand to encrypt or decrypt the data.  Since we have to do all
-	 * our cryptography in memory, we can only work with the amount of memory
-	 * currently available.
-	 * @param cipher The BufferedBlockCipher we'll be using to encrypt/decrypt
-	 * @param fileSize The size of the input file in bytes
-	 * @param caller The calling activity
-	 * @return True if there's sufficient memory to decrypt the file, false otherwise
-	 */
-	private static boolean haveSufficientMemory(BufferedBlockCipher cipher,
-			boolean encrypting, long fileSize, Activity caller)
-	{
-		// There are other factors that should eliminate this before we get to this
-		// step, but we can't deal with a file larger than 2GB.  There aren't any
-		// current Android devices with that much RAM anyway.
-		if (fileSize > (long)Integer.MAX_VALUE) return false;
-		// As an error check, make sure the cipher and caller objects are not null:
-		if (cipher == null || caller == null) return false;
-		// Now put on our asbestos underpants:
-		try {
-			// Get the memory information from the activity service:
-			MemoryInfo mi = new MemoryInfo();
-			ActivityManager activityManager =
-				(ActivityManager)caller.getSystemService(Context.ACTIVITY_SERVICE);
-			activityManager.getMemoryInfo(mi);
-			// In order to decrypt the file, we'll need at least as many bytes as
-			// the encrypted and decrypted data combined.  In order to get this,
-			// we'll add the size of the input file to the output size of the data
-			// after it passes through the cipher.  Note that it doesn't matter
-			// whether we're doing encryption or decryption at this point; the cipher
-			// object knows and the output size will be appropriate for the output
-			// mode.  If the sum of these two values is less than the available
-			// memory, we should be good to go.
-			//return mi.availMem > fileSize + (long)cipher.getOutputSize((int)fileSize);
-			if (encrypting) return mi.availMem > fileSize +
-				(long)cipher.getOutputSize((int)fileSize);
-			else return mi.availMem > (long)cipher.getBlockSize() +
-				(long)cipher.getOutputSize((int)fileSize);
-		} catch (Exception e) {
-			return false;
-		}
-	}
-	
 	/**
 	 * Given a cipher and the size of an input file, determine whether or not we have
 	 * enough memory on hand to encrypt or decrypt the data.  Since we have to do all
@@ -487,10 +491,13 @@ public class ImportExportHandler {
 	private static boolean haveSufficientMemory(Cipher cipher, long fileSize,
 			Activity caller)
 	{
-		// This is essentially the exact same method as above, only we're looking at
-		// a javax.crypto.Cipher object rather than a Bouncy Castle one.  The code
-		// is exactly the same, but the different class means we need a different
-		// input signature and thus a different method.
+		// This used to have a twin that did the same check for a Bouncy Castle
+		// BufferedBlockCipher.  The XML import and export now stream their data
+		// and don't need to hold it all in memory, so now only the old format
+		// importer, which uses a javax.crypto.Cipher, still needs this check.
+		// There are other factors that should eliminate this before we get to
+		// this step, but we can't deal with a file larger than 2GB.  There
+		// aren't any current Android devices with that much RAM anyway.
 		if (fileSize > (long)Integer.MAX_VALUE) return false;
 		if (cipher == null || caller == null) return false;
 		try {
@@ -600,7 +607,7 @@ public class ImportExportHandler {
 	 * Note that this class has changed starting with 1.1 to export only to
 	 * the new XML-based cross-platform format.
 	 * @author Jeffrey T. Darlington
-	 * @version 1.1
+	 * @version 1.3.5
 	 * @since 1.0
 	 */
 	private class Exporter extends Thread
@@ -644,22 +651,46 @@ public class ImportExportHandler {
             Bundle b = null;
             // Assuming there are sites to export:
             if (mSites.length > 0) {
+            	// We'll need to get at the output stream from the catch block
+            	// below so we can clean up if something goes wrong:
+            	PrintStream out = null;
 	            try
 	            {
-	            	// We want to write out our data to memory so we can
-	            	// subsequently encrypt it.  This is, as far as I can tell,
-	            	// the best equivalent to .NET's MemoryStream I can find:
-	            	ByteArrayOutputStream ms = new ByteArrayOutputStream();
+	            	// Create our cipher.  Note that we're using the
+	            	// encryption mode, and that we're passing in the
+	            	// password:
+	            	BufferedBlockCipher cipher =
+	            		createXMLFormatCipher(mPassword, true, theApp);
 	            	// Neither Android nor Java have any conveniences for
 	            	// *writing* XML, so we'll have to do it by hand.  Create
 	            	// a PrintStream to conveniently write our text out, and
 	            	// then pipe that through a GZIPOutputStream to compress
-	            	// it.  All of this chains into the ByteArrayOutputStream
-	            	// above, so we'll ultimately end up with a byte array
-	            	// that contains the compressed XML.  Note that we encode
-	            	// this with UTF-8 regardless of any user preference.
-	            	PrintStream out = new PrintStream(new GZIPOutputStream(ms),
-	            			true, CryptnosApplication.TEXT_ENCODING_UTF8);
+	            	// it.  Note that we encode this with UTF-8 regardless of
+	            	// any user preference.
+	            	//
+	            	// Originally, all of this chained into a ByteArrayOutputStream,
+	            	// which we then copied into a byte array, encrypted into a
+	            	// second array of the same size, and finally wrote out to
+	            	// the file.  That meant holding several copies of the entire
+	            	// export in memory, and we had to refuse to export if there
+	            	// wasn't enough RAM for all of them.  Now the compressed data
+	            	// runs straight through a CipherOutputStream and out to the
+	            	// file as we go, so memory use stays small and constant no
+	            	// matter how many sites we export.  The cipher is finalized
+	            	// (i.e. the padding is written) when the chain is closed.
+	            	// We also turned off the PrintStream's auto-flushing, which
+	            	// pushed every single line down the whole chain by itself.
+	            	out = new PrintStream(
+	            		new BufferedOutputStream(
+	            			new GZIPOutputStream(
+	            				new CipherOutputStream(
+	            					new BufferedOutputStream(
+	            						new FileOutputStream(mFilename),
+	            						STREAM_BUFFER_SIZE),
+	            					cipher),
+	            				STREAM_BUFFER_SIZE),
+	            			STREAM_BUFFER_SIZE),
+	            		false, CryptnosApplication.TEXT_ENCODING_UTF8);
 	            	// Print our our XML header info.  Note that we're writing
 	            	// a version 1 export file; later changes to the format
 	            	// may require us to update that.  Also note that we'll
@@ -687,132 +718,168 @@ public class ImportExportHandler {
 	                // Now we'll begin our <sites> block.  From here on out,
 	                // we'll need to iterate over our sites to export:
 	                out.println("\t<sites>");
-	            	// Declare our cursor:
-	            	Cursor cursor = null;
-	            	// Step through the sites in our list.  It might be more
-	            	// efficient to just get all the sites in the DB and
-	            	// compare the two lists, but for now we'll pull each
-	            	// site from the DB individually.
-	            	for (int i = 0; i < mSites.length; i++) {
-	            		// Get the site from the DB:
-	            		cursor = DBHelper.fetchRecord(SiteParameters.generateKeyFromSite(mSites[i], theApp));
-	        	        cursor.moveToFirst();
-	        	        if (cursor.getCount() == 1) {
-		        	        // Convert it to a SiteParamemters object: 
-		        	        SiteParameters params =
-	    		        		new SiteParameters(theApp,
-	    		        			cursor.getString(1),
-	    		        			cursor.getString(2));
+	            	// Originally, we stepped through the sites in our list and
+	            	// pulled each one from the DB individually, which meant
+	            	// one query per site.  Now we turn our list of site names
+	            	// into a set of the keys we want, then make a single pass
+	            	// over the entire table and pick out the rows whose keys
+	            	// are in the set.  The rows are read a batch at a time in
+	            	// row ID order; see below for why.
+	            	HashSet<String> wantedKeys = new HashSet<String>(mSites.length * 2);
+	            	for (int i = 0; i < mSites.length; i++)
+	            		wantedKeys.add(SiteParameters.generateKeyFromSite(mSites[i], theApp));
+	            	// Decrypting each record is the expensive part, so rather
+	            	// than doing that as we walk the cursor, we hand each row
+	            	// we want off to a RecordDecoder, which decrypts them on
+	            	// as many threads as we have CPU cores.  The decoder only
+	            	// keeps a few rows in flight at a time, and hands each
+	            	// finished site back to the listener below as soon as its
+	            	// window fills up.  That means we write the sites out while
+	            	// we're still reading the cursor, so we never hold more than
+	            	// a handful of them in memory no matter how many we're
+	            	// exporting.  The decoder calls us back on this thread and
+	            	// in the order we added the rows, so the file comes out in
+	            	// the same order we read them.  Progress is measured
+	            	// against the number of sites we were asked for, since we
+	            	// don't know how many rows we'll actually find until we're
+	            	// done.
+	            	final PrintStream siteOut = out;
+	            	final int siteTotal = mSites.length;
+	            	RecordDecoder decoder = new RecordDecoder(theApp,
+	            		new RecordDecoder.Listener() {
+	            		int lastPercent = -1;
+	            		public boolean onRecordDecoded(int index,
+	            			SiteParameters params) throws Exception {
+	            			// We used to let the SiteParameters constructor
+	            			// throw if a record couldn't be decrypted, which
+	            			// failed the whole export.  We'll keep doing that:
+	            			if (params == null)
+	            				throw new Exception("Unable to decode site");
 		        	        // Generate the XML tags from the SiteParameters
 		        	        // object.  There's not much to comment on here,
 		        	        // aside from the fact that we'll HTML-encode
 		        	        // the text fields to make sure they go through
 		        	        // without a problem.
-		        	        out.println("\t\t<site>");
-		        	        out.println("\t\t\t<siteToken>" +
+	            			siteOut.println("\t\t<site>");
+	            			siteOut.println("\t\t\t<siteToken>" +
 		        	        		TextUtils.htmlEncode(params.getSite()) +
 		        	        		"</siteToken>");
-        	        		out.println("\t\t\t<hash>" + 
+	            			siteOut.println("\t\t\t<hash>" + 
         	        				TextUtils.htmlEncode(params.getHash()) +
         	        				"</hash>");
-        	        		out.println("\t\t\t<iterations>" +
+	            			siteOut.println("\t\t\t<iterations>" +
         	        				String.valueOf(params.getIterations()) +
         	        				"</iterations>");
-        	        		out.println("\t\t\t<charTypes>" +
+	            			siteOut.println("\t\t\t<charTypes>" +
         	        				String.valueOf(params.getCharTypes()) +
         	        				"</charTypes>");
-        	        		out.println("\t\t\t<charLimit>" +
+	            			siteOut.println("\t\t\t<charLimit>" +
         	        				String.valueOf(params.getCharLimit()) +
         	        				"</charLimit>");
-		        	        out.println("\t\t</site>");
-	        	        }
-	        	        // Update the progress dialog by sending a message to
-	        	        // the handler.  Note that we're only going up to 90%
-	        	        // here, as we'll estimate the rest of the work will
-	        	        // encompass the remaining 10%.
-	        	        msg = mHandler.obtainMessage();
-		                b = new Bundle();
-		                b.putInt("percent_done",
-		                	(int)(Math.floor(((double)i / (double)mSites.length * 90.0d))));
-		                b.putInt("site_count", mSites.length);
-		                msg.setData(b);
-		                mHandler.sendMessage(msg);
-		                // Close the cursor for the next run:
-		                cursor.close();
+	            			siteOut.println("\t\t</site>");
+		        	        // Update the progress dialog by sending a message
+		        	        // to the handler.  Note that we're only going up
+		        	        // to 99% here; since the data is compressed,
+		        	        // encrypted and written as we go, all that's left
+		        	        // after the last site is flushing out the last few
+		        	        // bytes.  We'll only bother the handler when the
+		        	        // percentage actually changes.
+		        	        int percent = (int)(Math.floor((double)(index + 1) /
+		        	        		(double)siteTotal * 99.0d));
+		        	        if (percent != lastPercent) {
+		        	        	lastPercent = percent;
+			        	        Message msg = mHandler.obtainMessage();
+				                Bundle b = new Bundle();
+				                b.putInt("percent_done", percent);
+				                b.putInt("site_count", mSites.length);
+				                msg.setData(b);
+				                mHandler.sendMessage(msg);
+		        	        }
+		        	        return true;
+	            		}
+	            	});
+	            	// Since we write the file as we go, we can't keep the
+	            	// database locked while we walk the table; the background
+	            	// record upgrader, or anything else that wants to write,
+	            	// would be stuck waiting on us for the whole export, file
+	            	// I/O and all.  So we read the rows a batch at a time,
+	            	// copying each batch out and closing its cursor before we
+	            	// hand the rows to the decoder.  Each batch starts after
+	            	// the last row ID of the one before, so rows can't be
+	            	// skipped or read twice even if something is written in
+	            	// between.  A site saved in the middle of the export simply
+	            	// goes out as whichever version we happened to read.
+	            	byte[][] keys = new byte[EXPORT_BATCH_SIZE][];
+	            	byte[][] records = new byte[EXPORT_BATCH_SIZE][];
+	            	int[] versions = new int[EXPORT_BATCH_SIZE];
+	            	long lastRowId = 0;
+	            	try {
+		            	// Step through the rows until we've either run out of
+		            	// them or we've found every site we were looking for.
+		            	// We take each key out of the set as we find it, so
+		            	// each site is only exported once even if it somehow
+		            	// ended up in the database twice:
+	            		while (!wantedKeys.isEmpty()) {
+	            			int read = 0;
+	            			int found = 0;
+	            			Cursor cursor = DBHelper.fetchRecordsAfter(lastRowId,
+	            				EXPORT_BATCH_SIZE);
+	            			try {
+	            				while (read < EXPORT_BATCH_SIZE &&
+	            					cursor.moveToNext()) {
+	            					lastRowId = cursor.getLong(0);
+	            					read++;
+	            					byte[] rawKey = cursor.getBlob(1);
+	            					if (wantedKeys.remove(SiteParameters.keyFromBytes(rawKey))) {
+	            						keys[found] = rawKey;
+	            						records[found] = cursor.getBlob(2);
+	            						versions[found] = cursor.getInt(3);
+	            						found++;
+	            					}
+	            				}
+	            			} finally { cursor.close(); }
+	            			// If there's nothing left, we're done:
+	            			if (read == 0) break;
+	            			for (int i = 0; i < found; i++) {
+	            				decoder.add(keys[i], records[i], versions[i]);
+	            				keys[i] = null;
+	            				records[i] = null;
+	            			}
+	            		}
+	            	} catch (Exception e) {
+	            		decoder.cancel();
+	            		throw e;
 	            	}
+	            	// Wait for whatever's still in flight and write it out:
+	            	decoder.decodeAll();
 	                // Close out the <sites> block and the rest of the file:
 	                out.println("\t</sites>");
 	                out.println("</cryptnos>");
-	            	out.flush();
+	                // Closing the PrintStream closes the whole chain, which
+	                // finishes the compression, finalizes the cipher, and
+	                // closes the file.  PrintStream swallows I/O errors, so
+	                // we have to ask it explicitly whether anything went
+	                // wrong along the way:
 	            	out.close();
-	            	// Now our memory stream should contain the raw binary
-	            	// data of our compressed XML.  Grab that and put it into
-	            	// a byte array:
-	            	byte[] plaintext = ms.toByteArray();
-	            	ms.close();
-	            	ms = null;
+	            	if (out.checkError())
+	            		throw new Exception("Error writing export file");
 	            	out = null;
-	            	// Create our cipher.  Note that we're using the
-	            	// encryption mode, and that we're passing in the
-	            	// password:
-	            	BufferedBlockCipher cipher =
-	            		createXMLFormatCipher(mPassword, true, theApp);
-	            	// In order to encrypt the data, we need to be able to hold both
-	            	// the plain text and cipher text in memory at the same time.
-	            	// Make sure we've got enough RAM on hand to do that first:
-	            	if (ImportExportHandler.haveSufficientMemory(cipher, true,
-	            			(long)plaintext.length, mCaller)) {
-		            	// Create our ciphertext container.  Note that we call the
-		                // cipher's getOutputSize() method, which tells us how big
-		                // the resulting ciphertext should be.  In practice, this
-		                // has always been the same size as the plaintext, but we
-		                // can't take that for granted.
-		            	byte[] ciphertext =
-		            		new byte[cipher.getOutputSize(plaintext.length)];
-		            	// Do the encryption.  Note that the Java version is a bit
-						// different from the .NET version.  Here, we need to process
-						// most of the data with processBytes() first, then do a final
-						// call to doFinal() to finish things off.  Note that we also
-						// have to keep track of the number of bytes processed in
-						// the first step so we can pass it to the final step.  That
-						// was a major gotcha that caused me a lot of headaches.
-		            	int bytesSoFar = cipher.processBytes(plaintext, 0,
-		            			plaintext.length, ciphertext, 0);
-						cipher.doFinal(ciphertext, bytesSoFar);
-			        	msg = mHandler.obtainMessage();
-		                b = new Bundle();
-		                b.putInt("percent_done", 95);
-		                b.putInt("site_count", mSites.length);
-		                msg.setData(b);
-		                mHandler.sendMessage(msg);
-		                plaintext = null;
-						// Write the ciphertext to the export file:
-						FileOutputStream fos = new FileOutputStream(mFilename);
-		    			fos.write(ciphertext);
-		    			fos.flush();
-		    			fos.close();
-			        	msg = mHandler.obtainMessage();
-		                b = new Bundle();
-		                b.putInt("percent_done", 100);
-		                b.putInt("site_count", mSites.length);
-		                msg.setData(b);
-		                mHandler.sendMessage(msg);
-		                ciphertext = null;
-		                fos = null;
-		            // Insufficient memory to encrypt:
-	            	} else {
-			        	msg = mHandler.obtainMessage();
-		                b = new Bundle();
-		                b.putInt("percent_done", -5);
-		                b.putInt("site_count", 0);
-		                msg.setData(b);
-		                mHandler.sendMessage(msg);
-	            	}
+		        	msg = mHandler.obtainMessage();
+	                b = new Bundle();
+	                b.putInt("percent_done", 100);
+	                b.putInt("site_count", mSites.length);
+	                msg.setData(b);
+	                mHandler.sendMessage(msg);
 	            }
 	            // We should probably provide more detailed information here,
 	            // but for now just tell the user that the export failed.
 	            catch (Exception e)
 	            {
+	            	// Since we now write the file as we go, a failure may
+	            	// leave a partial export behind.  Close the stream if we
+	            	// still have it open and delete the unusable file:
+	            	if (out != null) out.close();
+	            	try { new File(mFilename).delete(); } catch (Exception e2) {}
 		        	msg = mHandler.obtainMessage();
 	                b = new Bundle();
 	                b.putInt("percent_done", -3);
@@ -902,17 +969,22 @@ public class ImportExportHandler {
 		                int bytesRead = 0;
 		                int blockSize = cipher.getBlockSize();
 		                int fileLength = (int)file.length();
-		                // Allocate a buffer to read in one block of the encrypted
+		                // Allocate a buffer to read in a chunk of the encrypted
 		                // data at a time.  This will prevent us from having to
-		                // slurp the entire file just to decrypt it.
-		                byte[] buffer = new byte[blockSize];
+		                // slurp the entire file just to decrypt it.  We originally
+		                // read just one cipher block at a time, but that forced the
+		                // cipher to buffer and process every block individually.
+		                // Reading a few hundred blocks at once lets processBytes()
+		                // hand them all to the cipher in a single tight loop.
+		                int chunkSize = blockSize * CIPHER_CHUNK_BLOCKS;
+		                byte[] buffer = new byte[chunkSize];
 		                // Open the file, then start looping through the data, one
-		                // block at a time:
+		                // chunk at a time:
 		            	FileInputStream fis = new FileInputStream(file);
 		            	while (bytesSoFar < fileLength) {
-		            		// Read a block into the buffer.  If we didn't read
+		            		// Read a chunk into the buffer.  If we didn't read
 		            		// any data, we're done and we'll break the loop.
-		            		bytesRead = fis.read(buffer, 0, blockSize);
+		            		bytesRead = fis.read(buffer, 0, chunkSize);
 		            		if (bytesRead <= 0) break;
 		            		// Run the block through the cipher and put the decrypted
 		            		// data into the "plain text" buffer:
@@ -1283,14 +1355,18 @@ public class ImportExportHandler {
 	            		currentSite != null){
 	                siteList.add(currentSite);
 	                inSiteTag = false;
-	                // For our percent done, we're scaling this part of the
-	                // process one third of the work, or 34-66%.  The
-	                // first 33% is the reading and decrypting of the data,
-	                // while the remaining 33% will be updating the database.
+	                // For our percent done, we used to scale this part of the
+	                // process as one third of the work, or 34-66%, after a
+	                // separate pass to read and decrypt the file.  Now the
+	                // file is read, decrypted, unzipped, and parsed all at
+	                // once as it streams through, so the sites we've parsed
+	                // are our only measure of progress.  We'll go up to 99%
+	                // here; the importer sends the final 100% once the
+	                // parser is done and the file has been checked.
 		        	msg = topHandler.obtainMessage();
 	                b = new Bundle();
 	                b.putInt("percent_done",
-		                	(int)(Math.floor(((double)siteList.size() / (double)siteCount * 33.0d))) + 33);	                b.putInt("site_count", 0);
+		                	(int)(Math.floor(((double)siteList.size() / (double)siteCount * 99.0d))));
 	                b.putInt("site_count", siteCount);
 	                msg.setData(b);
 	                topHandler.sendMessage(msg);
@@ -1324,7 +1400,7 @@ public class ImportExportHandler {
 	 * This Thread performs the grunt work of the Cryptnos import process if
  	 * the file is in the new XML-based cross-platform format.
 	 * @author Jeffrey T. Darlington
-	 * @version 1.3.0
+	 * @version 1.3.5
 	 * @since 1.1
 	 */
 	private class XMLFormat1Importer extends Thread
@@ -1360,132 +1436,98 @@ public class ImportExportHandler {
             
             try {
             	// Try to get the specified file and make sure it exists, it
-            	// actually is a file, it's readable, and it's size does not
-            	// exceed the maximum size of an integer (if it's too big,
-            	// we can't read it):
+            	// actually is a file, and it's readable.  Note that we used to
+            	// also require that the file be smaller than the maximum size
+            	// of an integer, since we had to hold the whole thing in
+            	// memory.  We now stream the file, so its size doesn't matter.
 	            File file = new File(mFilename);
-	            if (file.exists() && file.isFile() && file.canRead() &&
-	            		file.length() < (long)Integer.MAX_VALUE)
+	            if (file.exists() && file.isFile() && file.canRead())
 	            {
 	                // Create our cipher in decrypt mode:
 					BufferedBlockCipher cipher =
 						createXMLFormatCipher(mPassword, false, theApp);
-					// Given the cipher and file length, check to see if we have
-					// enough memory on hand to decrypt the data:
-					if (ImportExportHandler.haveSufficientMemory(cipher, false,
-							file.length(), mActivity)) {
-						// There's no way around this, but we need to allocate a
-						// full-size buffer to contain the entire decrypted XML:
-						byte[] plaintext =
-							new byte[cipher.getOutputSize((int)file.length())];
-						// Next, declare a few variables for the decryption.  We
-						// need to keep track of the total number of bytes read,
-						// as well as how many bytes we read in a given pass.
-						// We'll also grab the block size of the cipher and the
-						// file length so we don't have to call the object
-						// methods and cast longs to ints repeatedly.
-		                int bytesSoFar = 0;
-		                int bytesRead = 0;
-		                int blockSize = cipher.getBlockSize();
-		                int fileLength = (int)file.length();
-		                // Allocate a buffer to read in one block of the encrypted
-		                // data at a time.  This will prevent us from having to
-		                // slurp the entire file just to decrypt it.
-		                byte[] buffer = new byte[blockSize];
-		                // Open the file, then start looping through the data, one
-		                // block at a time:
-		            	FileInputStream fis = new FileInputStream(file);
-		            	while (bytesSoFar < fileLength) {
-		            		// Read a block into the buffer.  If we didn't read
-		            		// any data, we're done and we'll break the loop.
-		            		bytesRead = fis.read(buffer, 0, blockSize);
-		            		if (bytesRead <= 0) break;
-		            		// Run the block through the cipher and put the decrypted
-		            		// data into the "plain text" buffer:
-		            		bytesRead = cipher.processBytes(buffer, 0,
-		            				bytesRead, plaintext, bytesSoFar);
-		            		// Bump up the total number of bytes read:
-		            		bytesSoFar += bytesRead;
-		            		// Update the progress bar by sending a message to the
-		            		// handler.  We'll assume that decrypting the file is
-		            		// 33% of the work, so we'll scale it appropriately.
-		            		msg = mHandler.obtainMessage();
-			                b = new Bundle();
-			                b.putInt("percent_done",
-			                	(int)(Math.floor(((double)bytesRead / (double)fileLength * 33.0d))));
-			                b.putInt("site_count", 0);
-			                msg.setData(b);
-			                mHandler.sendMessage(msg);
-		            	}
-		            	// By now we should have exhausted the file.  Close the
-		            	// stream and null out it and the buffer so that memory
-		            	// can be reclaimed.
-		            	fis.close();
-		            	fis = null;
-		            	buffer = null;
-		            	// Do the final pass on the cipher.  After this step, the
-		            	// "plain text" array should have the fully decrypted data.
-		            	cipher.doFinal(plaintext, bytesSoFar);
-			        	msg = mHandler.obtainMessage();
-		                b = new Bundle();
-		                b.putInt("percent_done", 33);
-		                b.putInt("site_count", 0);
-		                msg.setData(b);
-		                mHandler.sendMessage(msg);
-		                // Now that we're done decrypting, release the cipher
-		                // and free up memory:
-		                cipher = null;
-		                // Now we need to parse the decrypted data.  To do that,
-		                // we'll need to unzip it and parse the XML.  We'll chain
-		                // some streams together here to get things started.
-		                BufferedInputStream in =
-		                	new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(plaintext)));
+	                // Originally, we decrypted the entire file into one big
+	                // "plain text" array, then unzipped and parsed that.  That
+	                // meant holding both the encrypted and decrypted data in
+	                // memory at once, and we had to refuse files that wouldn't
+	                // fit.  Now we chain streams together instead:  the file
+	                // feeds the cipher, the cipher feeds the unzipper, and the
+	                // unzipper feeds the XML parser.  Each step only pulls as
+	                // much data as it needs from the one before it, so only a
+	                // few small buffers are ever in memory no matter how big
+	                // the file is.  Note that since the steps now overlap, we
+	                // no longer report decryption progress separately; the
+	                // XML handler reports progress as it parses each site.
+	                //
+	                // We open the file on its own first, so we can always
+	                // close it.  A bad password or an old format file makes
+	                // the unzipper throw as soon as it's created, since what
+	                // comes out of the cipher isn't a valid header, and that's
+	                // the normal way we find out to try the old format.  If
+	                // anything goes wrong along the way, we'll make sure the
+	                // file gets closed before the exception bubbles up to the
+	                // catch below.
+	                FileInputStream fileIn = new FileInputStream(file);
+	                BufferedInputStream in = null;
+	                try {
+	                	CipherInputStream cipherIn =
+	                		new CipherInputStream(fileIn, cipher);
+		                in = new BufferedInputStream(new GZIPInputStream(
+		                	cipherIn));
 		                // Create a handler to do the grunt work of dealing with
 		                // the XML.  While the parser tokenizes things for us,
 		                // it doesn't do any logic with the data.
 		                XMLHandler xmlHandler = new XMLHandler(mHandler);
 		                // Set up a SAX parser and feed it both the unzipped data
 		                // and the handler.  It will internally build the list of
-		                // site parameters if successful.
+		                // site parameters if successful.  Some parsers close
+		                // their input when they're done, so we hide the real
+		                // close() from it; we still need the stream below.
 		                SAXParser parser =
 		                	SAXParserFactory.newInstance().newSAXParser();
-		                parser.parse(in, xmlHandler);
-		                // Now try to get the site parameters from the handler
-		                // and close the streams:
+		                parser.parse(new FilterInputStream(in) {
+		                	@Override
+		                	public void close() {}
+		                }, xmlHandler);
+		                // The parser stops as soon as it sees </cryptnos>, which
+		                // leaves the end of the zipped data and the cipher's
+		                // padding unread.  Those are what tell us the file
+		                // wasn't truncated or tampered with, so read everything
+		                // that's left.  The unzipper checks its trailer when it
+		                // gets to the end, and the cipher checks its padding
+		                // when the file runs out; either one will throw if
+		                // something's wrong.
+		                byte[] rest = new byte[STREAM_BUFFER_SIZE];
+		                while (in.read(rest) != -1) {}
+		                while (cipherIn.read(rest) != -1) {}
+		                // Now try to get the site parameters from the handler:
 		                importedSites = xmlHandler.getSites();
-		                in.close();
-		                // At this point, we shouldn't need the plaintext array
-		                // anymore either, nor the XML handler:
-		                plaintext = null;
-		                xmlHandler = null;
-		                in = null;
-		                // If we got any useful data, we'll proceed from here:
-		                if (importedSites != null && importedSites.length > 0) {
-			    			// If we get to here, everything must have gone A-OK.
-			    			// Explicitly send a 100% complete here to close out
-			    			// the progress dialog.  (I originally left this out,
-			    			// which resulted in the program hanging on the dialog
-			    			// and no way to close it.  Oops.)
-		        	        msg = mHandler.obtainMessage();
-			                b = new Bundle();
-			                b.putInt("percent_done", 100);
-			                //b.putInt("site_count", sites.length);
-			                b.putInt("site_count", importedSites.length);
-			                msg.setData(b);
-			                mHandler.sendMessage(msg);
-			    		// If we couldn't get any useful sites from the file,
-			    		// complain:
-		                } else {
-				        	msg = mHandler.obtainMessage();
-			                b = new Bundle();
-			                b.putInt("percent_done", -1000);
-			                b.putInt("site_count", 0);
-			                msg.setData(b);
-			                mHandler.sendMessage(msg);
-			            }
-		            // The file didn't exist, wasn't a file, couldn't be read, or
-		            // was too long to read:
-		            } else {
+	                } finally {
+	                	// Closing the top of the chain closes everything under
+	                	// it, but if we never got that far, we still need to
+	                	// close the file itself:
+	                	try { if (in != null) in.close(); }
+	                	finally { fileIn.close(); }
+	                }
+	                // At this point, we shouldn't need the cipher anymore:
+	                cipher = null;
+	                // If we got any useful data, we'll proceed from here:
+	                if (importedSites != null && importedSites.length > 0) {
+		    			// If we get to here, everything must have gone A-OK.
+		    			// Explicitly send a 100% complete here to close out
+		    			// the progress dialog.  (I originally left this out,
+		    			// which resulted in the program hanging on the dialog
+		    			// and no way to close it.  Oops.)
+	        	        msg = mHandler.obtainMessage();
+		                b = new Bundle();
+		                b.putInt("percent_done", 100);
+		                //b.putInt("site_count", sites.length);
+		                b.putInt("site_count", importedSites.length);
+		                msg.setData(b);
+		                mHandler.sendMessage(msg);
+		    		// If we couldn't get any useful sites from the file,
+		    		// complain:
+	                } else {
 			        	msg = mHandler.obtainMessage();
 		                b = new Bundle();
 		                b.putInt("percent_done", -1000);
@@ -1493,11 +1535,11 @@ public class ImportExportHandler {
 		                msg.setData(b);
 		                mHandler.sendMessage(msg);
 		            }
-				// Insufficient memory to decrypt:
+	            // The file didn't exist, wasn't a file, or couldn't be read:
 	            } else {
 		        	msg = mHandler.obtainMessage();
 	                b = new Bundle();
-	                b.putInt("percent_done", -5);
+	                b.putInt("percent_done", -2);
 	                b.putInt("site_count", 0);
 	                msg.setData(b);
 	                mHandler.sendMessage(msg);
@@ -0,0 +1,128 @@
+/* PBECipher.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      CipherPool
+ * REQUIRED BY:   SiteParameters
+ *
+ * This class implements the password-based encryption (PBE) scheme Cryptnos
+ * uses to encrypt site parameters in the database, built directly on the Bouncy
+ * Castle classes included in our source tree.  Originally, we asked the
+ * platform's security providers for a CryptnosApplication.KEY_FACTORY
+ * ("PBEWITHSHA-256AND256BITAES-CBC-BC") key factory and cipher.  That works,
+ * but it ties one of the most important parts of Cryptnos to whatever version
+ * of Bouncy Castle happens to ship with the user's copy of Android, the
+ * provider lookups are slow, and none of it can be run or tested on a plain
+ * Java VM because the desktop JCE doesn't know that algorithm.
+ *
+ * The scheme itself is simple enough to do ourselves.  The password is
+ * converted to bytes the PKCS #12 way (big-endian UTF-16 plus a two byte null
+ * terminator).  The PKCS #12 key derivation function, using SHA-256, then
+ * derives a 256-bit AES key and a 128-bit initialization vector from the
+ * password, salt, and iteration count.  The data is encrypted with AES in CBC
+ * mode with PKCS #7 padding.  This produces exactly the same bytes as the old
+ * provider-based cipher, so existing databases can be read and written
+ * without any conversion.
+ *
+ * Deriving the key and IV is the expensive part, so it is split out into
+ * deriveParameters(), and the result can be reused for as many encrypt and
+ * decrypt operations as needed.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.generators.PKCS12ParametersGenerator;
+
+/**
+ * An in-tree implementation of the PBEWITHSHA-256AND256BITAES-CBC-BC
+ * password-based encryption scheme used for site parameter data.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class PBECipher {
+
+	/* Public Constants *******************************************************/
+
+	/** The size of the derived AES key in bits */
+	public static final int KEY_SIZE = 256;
+	/** The size of the derived initialization vector in bits */
+	public static final int IV_SIZE = 128;
+
+	/**
+	 * Don't instantiate this class; everything here is static.
+	 */
+	private PBECipher() {}
+
+	/* Public Static Methods **************************************************/
+
+	/**
+	 * Derive the AES key and initialization vector for the specified password,
+	 * salt, and iteration count.  This is the expensive part of the process,
+	 * so hold on to the result if you'll need it again.
+	 * @param password The password to derive the key from
+	 * @param salt The salt to derive the key with
+	 * @param iterationCount The number of iterations of the key derivation
+	 * function to perform
+	 * @return The derived key and IV, ready to pass to process()
+	 * @throws Exception Thrown if any error occurs while deriving the key
+	 */
+	public static CipherParameters deriveParameters(String password,
+		byte[] salt, int iterationCount) throws Exception
+	{
+		PKCS12ParametersGenerator generator = CipherPool.getPBEGenerator();
+		generator.init(PBEParametersGenerator.PKCS12PasswordToBytes(
+			password.toCharArray()), salt, iterationCount);
+		return generator.generateDerivedParameters(KEY_SIZE, IV_SIZE);
+	}
+
+	/**
+	 * Encrypt or decrypt a block of data
+	 * @param params The key and IV returned by deriveParameters()
+	 * @param encrypt True to encrypt the data, false to decrypt it
+	 * @param data The data to encrypt or decrypt.  This is never modified.
+	 * @return The encrypted or decrypted data
+	 * @throws Exception Thrown if any error occurs, such as when decrypting
+	 * with the wrong key
+	 */
+	public static byte[] process(CipherParameters params, boolean encrypt,
+		byte[] data) throws Exception
+	{
+		// Get this thread's cipher and point it at our key.  The init()
+		// call resets the cipher, wiping out anything left over from the
+		// last time it was used:
+		BufferedBlockCipher cipher = CipherPool.getPBECipher();
+		cipher.init(encrypt, params);
+		// Now run the data through.  The output size is only an upper bound
+		// when decrypting, since we can't know how much padding there is
+		// until we're done, so we may need to trim the result down:
+		byte[] out = new byte[cipher.getOutputSize(data.length)];
+		int length = cipher.processBytes(data, 0, data.length, out, 0);
+		length += cipher.doFinal(out, length);
+		if (length == out.length) return out;
+		byte[] trimmed = new byte[length];
+		System.arraycopy(out, 0, trimmed, 0, length);
+		return trimmed;
+	}
+
+}
@@ -23,6 +23,55 @@
  * UPDATES FOR 1.3.0:  Minor code clean-up and tweaks.  Added DB_ERROR
  * public constant.
  * 
+ * UPDATES FOR 1.3.5:  Added fetchRecordsAfter() so bulk operations like
+ * exporting can walk the whole table a batch at a time, rather than issuing
+ * one query per site, without locking the database while they work.
+ * Database version 2 adds a unique index on the site key column, so looking up
+ * a site by its key no longer has to scan the whole table.  Database upgrades
+ * are now applied one version at a time by a set of migration steps that keep
+ * the existing data, rather than dropping the table and starting over.
+ * createRecord() now looks up the site's row by key and updates it in place,
+ * only inserting a new row if there wasn't one.
+ * All lookups, inserts, updates, and deletes now use fixed SQL with bound
+ * arguments rather than gluing the values into the SQL, and the statements
+ * that don't return a cursor are compiled once and kept in a small cache
+ * owned by the adapter, so bulk operations like importing don't make SQLite
+ * parse and plan the same statement over and over again.  Added
+ * createRecords() to write a whole batch of already encrypted records in a
+ * single transaction.  Added containsKeys() to check which of a set of site
+ * keys are already in the database without decrypting anything.  Added the
+ * ChangeListener interface, which is told about every site that is saved or
+ * deleted so the application can keep its site list up to date without
+ * rebuilding it.  createRecords() tells the listener about its whole batch in
+ * one call, so the list is only updated once per batch.  createRecords() now
+ * takes the SiteParameters being written
+ * so the listener can be told their site names.  Database version 3 adds the
+ * site_index table, which holds an encrypted copy of every site key and name
+ * (see SiteIndex) so the site list can be loaded without decrypting every
+ * record.  Every method that writes records keeps the index up to date in the
+ * same transaction.  Database version 4 adds the version column, which records
+ * the SiteParameters record format each row is encrypted in.  Existing rows
+ * are version 1; everything written from now on is written in the current
+ * format.  The record cursors now include the version column, and
+ * fetchOldRecords() and upgradeRecords() let the RecordUpgrader rewrite the
+ * old rows in the background.  Database version 5 stores the site key and
+ * parameters columns as raw BLOBs rather than Base64 text, which makes the
+ * database about a quarter smaller and saves encoding and decoding Base64 on
+ * every read and write.  Site keys are still passed in and out of the adapter
+ * as Strings; see SiteParameters.keyToBytes() and keyFromBytes().  Each raw
+ * key starts with a marker byte that says whether it is a SHA-512 digest or
+ * the text of a fallback key, so the migration keeps every record, odd keys
+ * and all, and never has to guess which kind of key it's reading back.  Since
+ * Android's query methods can only bind Strings, lookups by site key now go
+ * through compiled statements, and fetchRecord(String) finds the row ID first.
+ * Database version 6 adds the site_index_delta table.  Updating the site index
+ * used to mean decrypting, changing, and re-encrypting the whole thing every
+ * time a single record was written.  Now each write just appends its own
+ * encrypted changes to the delta table, and saving new parameters for a site
+ * that's already there doesn't touch the index at all, since its key and name
+ * can't have changed.  The changes are folded back into the index the next
+ * time it's loaded, or once enough of them have piled up.
+ * 
  * This program is Copyright 2011, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -41,31 +90,82 @@
 */
 package com.gpfcomics.android.cryptnos;
 
-import android.content.ContentValues;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
  * A database adaptor for reading and writing Cryptnos site parameter data to
  * and from the database.
  * @author Jeffrey T. Darlington
- * @version 1.3.0
+ * @version 1.3.5
  * @since 1.0
  */
 public class ParamsDbAdapter {
 
+	/**
+	 * The interface for anyone who wants to be told when site records are
+	 * added, changed, or deleted.  The listener is called on whatever thread
+	 * made the change, after the change has been committed to the database.
+	 * @author Jeffrey T. Darlington
+	 * @version 1.3.5
+	 * @since 1.3.5
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called when a site record is created or updated
+		 * @param key The site key of the record
+		 * @param site The name of the site
+		 */
+		public void onRecordSaved(String key, String site);
+		/**
+		 * Called when a batch of site records is created or updated at once,
+		 * such as during an import.  This is called once for the whole batch
+		 * rather than calling onRecordSaved() for every record, so the
+		 * listener can apply all of the changes in one go.
+		 * @param keys The site keys of the records
+		 * @param sites The names of the sites, in the same order as the keys
+		 * @param count The number of records saved, from the start of the
+		 * arrays
+		 */
+		public void onRecordsSaved(String[] keys, String[] sites, int count);
+		/**
+		 * Called when a site record is deleted
+		 * @param key The site key of the deleted record
+		 */
+		public void onRecordDeleted(String key);
+		/**
+		 * Called when all site records are deleted at once
+		 */
+		public void onAllRecordsDeleted();
+	}
+
 	/* Public Constants *******************************************************/
 	
     /** A constant representing the row ID database field. */
     public static final String DBFIELD_ROWID = "_id";
-    /** A constant representing the site "key" or unique token. */
+    /** A constant representing the site "key" or unique token.  This is a
+     *  BLOB; see SiteParameters.keyFromBytes(). */
     public static final String DBFIELD_SITE = "site";
-    /** A constant representing the site parameters database field. */
+    /** A constant representing the site parameters database field.  This is
+     *  a BLOB holding the raw encrypted data. */
     public static final String DBFIELD_PARAMS = "params";
+    /** A constant representing the record format version database field.
+     *  See SiteParameters.RECORD_FORMAT_V1 and friends. */
+    public static final String DBFIELD_VERSION = "version";
     /** A constant representing a failure.  Use this in comparisons when you are
      *  looking at a row ID to see if the action failed or not. */
     public static final long DB_ERROR = -1L;
@@ -76,16 +176,147 @@ public class ParamsDbAdapter {
      *  nowhere else.  That said, I'm not sure what other purpose this
      *  constant may serve. */
     private static final String TAG = "ParamsDbAdapter";
-    /** Database creation SQL statement */
+    /** Database creation SQL statement.  Note that this creates the original
+     *  version 1 table; DatabaseHelper.onCreate() then runs all of the
+     *  migration steps on top of it, so new and upgraded databases always
+     *  end up exactly the same. */
     private static final String DATABASE_CREATE_SQL =
             "create table parameters (_id integer primary key autoincrement, "
                     + "site text not null, params text not null);";
+    /** Version 2 migration SQL:  Remove any duplicate site keys, keeping the
+     *  most recently created row for each.  The old createRecord() checked
+     *  for an existing row before inserting, but nothing actually stopped
+     *  duplicates, and we can't add the unique index below if there are
+     *  any. */
+    private static final String DATABASE_V2_DEDUPE_SQL =
+            "delete from parameters where _id not in "
+                    + "(select max(_id) from parameters group by site);";
+    /** Version 2 migration SQL:  Add a unique index on the site key column */
+    private static final String DATABASE_V2_INDEX_SQL =
+            "create unique index if not exists parameters_site_idx "
+                    + "on parameters (site);";
+    /** Version 3 migration SQL:  Add the site index table.  This only ever
+     *  holds a single row, with an _id of 1. */
+    private static final String DATABASE_V3_SITE_INDEX_SQL =
+            "create table if not exists site_index (_id integer primary key, "
+                    + "names text not null, row_count integer not null, "
+                    + "checksum integer not null);";
+    /** Version 4 migration SQL:  Add the record format version column.  Every
+     *  row that's already there is in the original format. */
+    private static final String DATABASE_V4_VERSION_SQL =
+            "alter table parameters add column version integer not null "
+                    + "default 1;";
+    /** Version 5 migration SQL:  Create the new parameters table, with the
+     *  site key and parameters stored as BLOBs.  SQLite can't change the type
+     *  of a column, so we have to copy everything into a new table. */
+    private static final String DATABASE_V5_CREATE_SQL =
+            "create table parameters_v5 (_id integer primary key autoincrement, "
+                    + "site blob not null, params blob not null, "
+                    + "version integer not null default 1);";
+    /** Version 5 migration SQL:  Read the old records to copy */
+    private static final String DATABASE_V5_SELECT_SQL =
+            "select _id, site, params, version from parameters;";
+    /** Version 5 migration SQL:  Copy a record into the new table, keeping
+     *  its row ID */
+    private static final String DATABASE_V5_COPY_SQL =
+            "insert into parameters_v5 (_id, site, params, version) "
+                    + "values (?, ?, ?, ?);";
+    /** Version 5 migration SQL:  Drop the old table */
+    private static final String DATABASE_V5_DROP_SQL = "drop table parameters;";
+    /** Version 5 migration SQL:  Put the new table in place of the old */
+    private static final String DATABASE_V5_RENAME_SQL =
+            "alter table parameters_v5 rename to parameters;";
+    /** Version 6 migration SQL:  Add the site index delta table, which holds
+     *  the changes made to the site index since it was last written, in the
+     *  order they were made. */
+    private static final String DATABASE_V6_DELTA_SQL =
+            "create table if not exists site_index_delta (_id integer primary "
+                    + "key autoincrement, changes text not null);";
     /** A constant representing the name of the database. */
     private static final String DATABASE_NAME = "cryptnos";
     /** A constant representing the primary data table in the database. */
     private static final String DATABASE_TABLE = "parameters";
-    /** The version of this database. */
-    private static final int DATABASE_VERSION = 1;
+    /** The version of this database.  If you change this, make sure to add
+     *  a matching step to DatabaseHelper.migrate(). */
+    private static final int DATABASE_VERSION = 6;
+    /** SQL to insert a new record */
+    private static final String SQL_INSERT =
+    		"insert into parameters (site, params, version) values (?, ?, ?);";
+    /** SQL to find the row ID of a record by its site key */
+    private static final String SQL_FIND_ID_BY_KEY =
+    		"select _id from parameters where site = ?;";
+    /** SQL to find the site key of a record by its row ID */
+    private static final String SQL_FIND_KEY_BY_ID =
+    		"select site from parameters where _id = ?;";
+    /** SQL to update only the parameters of a record by its row ID */
+    private static final String SQL_UPDATE_PARAMS_BY_ID =
+    		"update parameters set params = ?, version = ? where _id = ?;";
+    /** SQL to update a record by its row ID */
+    private static final String SQL_UPDATE_BY_ID =
+    		"update parameters set site = ?, params = ?, version = ? where _id = ?;";
+    /** SQL to upgrade a record to a new format, but only if it hasn't been
+     *  changed since it was read */
+    private static final String SQL_UPGRADE_BY_ID =
+    		"update parameters set params = ?, version = ? where _id = ? "
+    		+ "and params = ? and version = ?;";
+    /** SQL to delete a record by its row ID */
+    private static final String SQL_DELETE_BY_ID =
+    		"delete from parameters where _id = ?;";
+    /** SQL to delete a record by its site key */
+    private static final String SQL_DELETE_BY_KEY =
+    		"delete from parameters where site = ?;";
+    /** SQL to count the records in the database */
+    private static final String SQL_COUNT =
+    		"select count(*) from parameters;";
+    /** SQL to get the number of rows changed by the last update or delete */
+    private static final String SQL_CHANGES = "select changes();";
+    /** SQL to fetch a record by its row ID */
+    private static final String SQL_FETCH_BY_ID =
+    		"select _id, site, params, version from parameters where _id = ?;";
+    /** SQL to fetch the next few records in row ID order, starting after
+     *  the specified row ID */
+    private static final String SQL_FETCH_AFTER =
+    		"select _id, site, params, version from parameters where _id > ? "
+    		+ "order by _id limit ?;";
+    /** SQL to fetch the next few records that aren't in the current format,
+     *  in row ID order, starting after the specified row ID */
+    private static final String SQL_FETCH_OLD =
+    		"select _id, site, params, version from parameters where version < ? "
+    		+ "and _id > ? order by _id limit ?;";
+    /** SQL to fetch every site key.  We can't have SQLite sort these, since
+     *  it would sort the raw keys, not the Strings they stand for. */
+    private static final String SQL_ALL_KEYS = "select site from parameters;";
+    /** SQL to count the records with a given site key */
+    private static final String SQL_COUNT_BY_KEY =
+    		"select count(*) from parameters where site = ?;";
+    /** SQL to fetch the site index */
+    private static final String SQL_INDEX_FETCH =
+    		"select names, row_count, checksum from site_index where _id = 1;";
+    /** SQL to save the site index */
+    private static final String SQL_INDEX_SAVE =
+    		"insert or replace into site_index (_id, names, row_count, checksum) "
+    		+ "values (1, ?, ?, ?);";
+    /** SQL to throw away the site index */
+    private static final String SQL_INDEX_DELETE = "delete from site_index;";
+    /** SQL to see whether there is a site index, without reading it */
+    private static final String SQL_INDEX_EXISTS =
+    		"select count(*) from site_index;";
+    /** SQL to record a set of changes to the site index */
+    private static final String SQL_DELTA_INSERT =
+    		"insert into site_index_delta (changes) values (?);";
+    /** SQL to fetch the changes to the site index, oldest first */
+    private static final String SQL_DELTA_FETCH =
+    		"select changes from site_index_delta order by _id;";
+    /** SQL to count the changes to the site index */
+    private static final String SQL_DELTA_COUNT =
+    		"select count(*) from site_index_delta;";
+    /** SQL to throw away the changes to the site index */
+    private static final String SQL_DELTA_DELETE = "delete from site_index_delta;";
+    /** The number of sets of changes we'll let pile up before folding them
+     *  back into the site index.  Folding them means decrypting and
+     *  re-encrypting the whole index, so we don't want to do it often, but
+     *  every set left over is one more decryption when the index is loaded. */
+    private static final int SITE_INDEX_DELTA_LIMIT = 64;
 
 	/* Private Members **********************************************************/
 	
@@ -95,13 +326,30 @@ public class ParamsDbAdapter {
     private SQLiteDatabase mDb;
     /** Our calling Context. */
     private final Context mCtx;
+    /** Our cache of compiled SQL statements, keyed by their SQL.  Each
+     *  statement is compiled the first time it's needed and kept until the
+     *  adapter is closed.  A compiled statement can only be used by one
+     *  thread at a time, so always hold the lock on this map while binding
+     *  and running one. */
+    private final HashMap<String, SQLiteStatement> mStatements =
+    		new HashMap<String, SQLiteStatement>();
+    /** The listener to tell about changes to the site records, if any */
+    private volatile ChangeListener mListener = null;
 
     /**
      * This helper wraps a little bit of extra functionality around the
      * default SQLiteOpenHelper, giving it a bit more code specific to
      * how Cryptnos works.
+     * 
+     * Schema changes are made by a series of migration steps, one for each
+     * database version after the first.  Each step takes the database from
+     * the previous version to its own, keeping all the existing data.  A new
+     * database is created at version 1 and then has every step applied to it,
+     * while an existing database only has the steps it hasn't seen yet.
+     * Android runs both onCreate() and onUpgrade() inside a transaction, so
+     * if any step fails, the whole upgrade is rolled back.
      * @author Jeffrey T. Darlington
-	 * @version 1.0
+	 * @version 1.3.5
 	 * @since 1.0
      */
     private static class DatabaseHelper extends SQLiteOpenHelper {
@@ -113,14 +361,104 @@ public class ParamsDbAdapter {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DATABASE_CREATE_SQL);
+            for (int version = 2; version <= DATABASE_VERSION; version++)
+            	migrate(db, version);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
-            onCreate(db);
+        	// Originally, this dropped the table and started over, which
+        	// threw away all of the user's parameters.  Now we step through
+        	// each version in turn and apply its migration:
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion);
+            for (int version = oldVersion + 1; version <= newVersion; version++)
+            	migrate(db, version);
+        }
+
+        /**
+         * Apply a single migration step, taking the database from the
+         * previous version up to the specified version.
+         * @param db The database to upgrade
+         * @param version The version to upgrade to
+         * @throws SQLException Thrown if we don't know how to upgrade to the
+         * specified version, or if the upgrade fails
+         */
+        private void migrate(SQLiteDatabase db, int version) throws SQLException {
+        	switch (version)
+        	{
+        		// Version 2:  Add the unique index on the site key, clearing
+        		// out any duplicates first:
+        		case 2:
+        			db.execSQL(DATABASE_V2_DEDUPE_SQL);
+        			db.execSQL(DATABASE_V2_INDEX_SQL);
+        			break;
+        		// Version 3:  Add the site index table.  It starts out empty;
+        		// the next time the site list is built, it will be filled in.
+        		case 3:
+        			db.execSQL(DATABASE_V3_SITE_INDEX_SQL);
+        			break;
+        		// Version 4:  Add the record format version column.  We don't
+        		// convert the old records here, since that means decrypting
+        		// every one of them; the RecordUpgrader takes care of that in
+        		// the background.
+        		case 4:
+        			db.execSQL(DATABASE_V4_VERSION_SQL);
+        			break;
+        		// Version 5:  Store the site key and parameters as BLOBs.
+        		// The unique index on the site key goes away with the old
+        		// table, so it needs to be created again.
+        		case 5:
+        			db.execSQL(DATABASE_V5_CREATE_SQL);
+        			copyToBlobs(db);
+        			db.execSQL(DATABASE_V5_DROP_SQL);
+        			db.execSQL(DATABASE_V5_RENAME_SQL);
+        			db.execSQL(DATABASE_V2_INDEX_SQL);
+        			break;
+        		// Version 6:  Add the site index delta table.  Any index we
+        		// already have is still good; it just has no changes yet.
+        		case 6:
+        			db.execSQL(DATABASE_V6_DELTA_SQL);
+        			break;
+        		default:
+        			throw new SQLException("No database migration to version " +
+        				version);
+        	}
+        }
+
+        /**
+         * Copy every record from the old parameters table into the new
+         * version 5 table, decoding the Base64 text into raw bytes.  SQLite
+         * doesn't know anything about Base64, so we have to do this one row
+         * at a time ourselves.  If a value somehow isn't valid Base64, we'll
+         * keep its text as-is rather than lose the record; it wasn't going to
+         * decrypt anyway.  Site keys that aren't Base64-encoded digests (the
+         * site name fallback from generateKeyFromSite()) are kept too:
+         * keyToBytes() marks them as text, so they can't be confused with a
+         * digest no matter how long they are.
+         * @param db The database to upgrade
+         * @throws SQLException Thrown if the records could not be copied
+         */
+        private void copyToBlobs(SQLiteDatabase db) throws SQLException {
+        	SQLiteStatement copy = db.compileStatement(DATABASE_V5_COPY_SQL);
+        	Cursor c = db.rawQuery(DATABASE_V5_SELECT_SQL, null);
+        	try {
+        		while (c.moveToNext()) {
+        			copy.bindLong(1, c.getLong(0));
+        			copy.bindBlob(2, SiteParameters.keyToBytes(c.getString(1)));
+        			byte[] params = SiteParameters.decodeBase64Exactly(c.getString(2));
+        			if (params == null) {
+        				Log.w(TAG, "Record " + c.getLong(0) + " is not Base64; copying as-is");
+        				params = c.getBlob(2);
+        			}
+        			copy.bindBlob(3, params);
+        			copy.bindLong(4, c.getLong(3));
+        			copy.executeInsert();
+        		}
+        	} finally {
+        		c.close();
+        		copy.close();
+        	}
         }
     }
 
@@ -155,9 +493,65 @@ public class ParamsDbAdapter {
      * Close the Cryptnos database.
      */
     public void close() {
+    	// Compiled statements hold on to resources inside SQLite, so let go
+    	// of them before we close the database itself:
+    	synchronized (mStatements) {
+    		for (SQLiteStatement stmt : mStatements.values()) stmt.close();
+    		mStatements.clear();
+    	}
         mDbHelper.close();
     }
 
+    /**
+     * Set the listener to be told whenever a site record is created, updated,
+     * or deleted.  Only one listener is supported; setting a new one replaces
+     * the old one.
+     * @param listener The ChangeListener, or null to stop listening
+     */
+    public void setChangeListener(ChangeListener listener) {
+    	mListener = listener;
+    }
+
+    /**
+     * Get the compiled statement for the specified SQL, compiling it if this
+     * is the first time we've needed it.  Callers must hold the lock on
+     * mStatements until they're done with the statement.
+     * @param sql The SQL of the statement.  This should always be one of our
+     * constants; the values should always be bound as arguments, never glued
+     * into the SQL itself, or the cache will fill up with one-off statements.
+     * @return The compiled statement
+     * @throws SQLException Thrown if the SQL could not be compiled
+     */
+    private SQLiteStatement getStatement(String sql) throws SQLException {
+    	SQLiteStatement stmt = mStatements.get(sql);
+    	if (stmt == null) {
+    		stmt = mDb.compileStatement(sql);
+    		mStatements.put(sql, stmt);
+    	}
+    	return stmt;
+    }
+
+    /**
+     * Run a compiled update or delete statement and return the number of
+     * rows it changed.  Callers must hold the lock on mStatements.
+     * SQLiteStatement.executeUpdateDelete() would do this for us, but it
+     * only exists on Honeycomb and newer, so instead we ask SQLite how many
+     * rows were changed.  That count belongs to the database connection, so
+     * we run both inside a transaction to make sure they use the same one.
+     * @param stmt The statement to run, with its arguments already bound
+     * @return The number of rows changed
+     * @throws SQLException Thrown if the statement fails
+     */
+    private int executeUpdateDelete(SQLiteStatement stmt) throws SQLException {
+    	mDb.beginTransaction();
+    	try {
+    		stmt.execute();
+    		int changes = (int)getStatement(SQL_CHANGES).simpleQueryForLong();
+    		mDb.setTransactionSuccessful();
+    		return changes;
+    	} finally { mDb.endTransaction(); }
+    }
+
 
     /**
      * Create a new site parameter record using the SiteParameters object
@@ -176,30 +570,35 @@ public class ParamsDbAdapter {
         	// primary field.  In our case, however, we really want the site
         	// key to be our driver, and it must be unique.  Thus, if we
         	// attempt to create a record that is actually a duplicate site,
-        	// we don't want to create it but update it instead.  In order to
-        	// facilitate this, we'll first check to see if the site parameters
-        	// provided already exist in the database:
-        	Cursor c = fetchRecord(siteParams.getKey());
-        	// If we got a record, go into update mode instead:
-        	if (c!= null && c.getCount() > 0) {
-        		// Get the existing row's ID:
-        		long rowID = c.getLong(0);
-        		// Close the cursor, since we don't really need it:
-        		c.close();
-        		// And update the existing row with the new data.  Hurray for
-        		// code reuse!
-        		if (updateRecord(rowID, siteParams)) return rowID;
-        		else return DB_ERROR;
-        	// If the site doesn't exist, create a new one:
-        	} else {
-        		// Close out the cursor:
-        		if (c!= null) c.close();
-        		// Perform the insert:
-		    	ContentValues initialValues = new ContentValues();
-		        initialValues.put(DBFIELD_SITE, siteParams.getKey());
-		        initialValues.put(DBFIELD_PARAMS, siteParams.exportEncryptedString());
-		        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        	// we don't want to create it but update it instead.
+        	//
+        	// To keep this fast, we look up the site's row ID with a compiled
+        	// statement.  Since the site key has a unique index, that's a
+        	// quick index search rather than a table scan.  If we find it, we
+        	// update that row's parameters in place; otherwise we insert a new
+        	// row.  Note that we do the update rather than an "insert or
+        	// replace" because replacing would give the site a new row ID, and
+        	// callers may be holding on to the old one.  The whole thing runs
+        	// in a transaction so nobody can sneak in and create the same site
+        	// between the lookup and the insert.
+        	String key = siteParams.getKey();
+        	byte[] params = siteParams.exportEncryptedBytes();
+        	long rowID = DB_ERROR;
+        	synchronized (mStatements) {
+        		mDb.beginTransaction();
+        		try {
+        			HashMap<String, String> changes = new HashMap<String, String>();
+        			rowID = upsert(key, siteParams.getSite(), params, changes);
+        			if (rowID != DB_ERROR) {
+        				updateSiteIndex(changes);
+        				mDb.setTransactionSuccessful();
+        			}
+        		} finally { mDb.endTransaction(); }
         	}
+        	ChangeListener listener = mListener;
+        	if (rowID != DB_ERROR && listener != null)
+        		listener.onRecordSaved(key, siteParams.getSite());
+        	return rowID;
         }
         catch (Exception e)
         {
@@ -207,6 +606,110 @@ public class ParamsDbAdapter {
         }
     }
 
+    /**
+     * Create or update a whole batch of site parameter records at once.  This
+     * works just like calling createRecord() for each record, but all of the
+     * records are written in a single transaction.  Every transaction has to
+     * wait for the data to actually reach the disk before it's finished, so
+     * writing hundreds of records one transaction at a time spends almost
+     * all of its time waiting on the storage.  The records must already be
+     * encrypted in the current record format, so the expensive encryption can
+     * be done ahead of time (say, by a RecordEncoder) without holding the
+     * database.
+     * @param sites The SiteParameters of the records to write.  Their site
+     * keys must already have been generated by calling getKey(), which the
+     * RecordEncoder does for us.
+     * @param params The encrypted parameter data of the records to write,
+     * in the same order as the sites
+     * @param count The number of records to write from the start of the
+     * arrays.  This lets callers reuse the same arrays for each batch.
+     * @return The number of records successfully written
+     * @throws Exception Thrown when the records could not be saved.  If this
+     * happens, none of the records in the batch are saved.
+     */
+    public int createRecords(SiteParameters[] sites, byte[][] params, int count)
+    	throws Exception
+    {
+        try
+        {
+        	// Keep track of which records were actually written, so we only
+        	// tell the listener about those once the batch is committed:
+        	boolean[] saved = new boolean[count];
+        	int written = 0;
+        	synchronized (mStatements) {
+        		mDb.beginTransaction();
+        		try {
+        			HashMap<String, String> changes = new HashMap<String, String>();
+        			for (int i = 0; i < count; i++) {
+        				saved[i] = upsert(sites[i].getKey(), sites[i].getSite(),
+        					params[i], changes) != DB_ERROR;
+        				if (saved[i]) written++;
+        			}
+        			updateSiteIndex(changes);
+        			mDb.setTransactionSuccessful();
+        		} finally { mDb.endTransaction(); }
+        	}
+        	ChangeListener listener = mListener;
+        	if (listener != null && written > 0) {
+        		String[] keys = new String[written];
+        		String[] names = new String[written];
+        		int n = 0;
+        		for (int i = 0; i < count; i++) {
+        			if (saved[i]) {
+        				keys[n] = sites[i].getKey();
+        				names[n] = sites[i].getSite();
+        				n++;
+        			}
+        		}
+        		listener.onRecordsSaved(keys, names, written);
+        	}
+        	return written;
+        }
+        catch (Exception e)
+        {
+        	throw new Exception(mCtx.getResources().getString(R.string.error_bad_save));
+        }
+    }
+
+    /**
+     * Create a new record with the specified site key, or update the
+     * parameters of the existing record if there already is one.  This is
+     * a helper for createRecord() and createRecords(); callers must hold the
+     * lock on mStatements and have a transaction open.  If a new record is
+     * created, its site key and name are added to the changes to make to the
+     * site index.  An existing record's site name can't have changed, since
+     * its site key is generated from the name, so updating one leaves the
+     * index alone.
+     * @param key The site key of the record
+     * @param site The site name of the record
+     * @param params The encrypted parameter data of the record, in the
+     * current record format
+     * @param changes The changes to make to the site index, which we'll add
+     * to if we create a new record
+     * @return The row ID of the created or updated record, or DB_ERROR if
+     * the insert failed
+     * @throws SQLException Thrown if the database could not be written
+     */
+    private long upsert(String key, String site, byte[] params,
+    	Map<String, String> changes) throws SQLException {
+    	long rowID = findRowId(key);
+    	if (rowID != DB_ERROR) {
+    		SQLiteStatement update = getStatement(SQL_UPDATE_PARAMS_BY_ID);
+    		update.bindBlob(1, params);
+    		update.bindLong(2, SiteParameters.RECORD_FORMAT_CURRENT);
+    		update.bindLong(3, rowID);
+    		update.execute();
+    		return rowID;
+    	}
+    	SQLiteStatement insert = getStatement(SQL_INSERT);
+    	insert.bindBlob(1, SiteParameters.keyToBytes(key));
+    	insert.bindBlob(2, params);
+    	insert.bindLong(3, SiteParameters.RECORD_FORMAT_CURRENT);
+    	rowID = insert.executeInsert();
+    	if (rowID != DB_ERROR) changes.put(key, site);
+    	return rowID;
+    }
+
     /**
      * Delete the note with the given row ID
      * 
@@ -214,8 +717,26 @@ public class ParamsDbAdapter {
      * @return True if deleted, false otherwise
      */
     public boolean deleteRecord(long rowId) {
-        return mDb.delete(DATABASE_TABLE, DBFIELD_ROWID + "=" + rowId, null)
-        	> 0;
+    	// We need to know the site key to tell the listener what's gone, so
+    	// look that up before we delete the row:
+    	String key = null;
+    	synchronized (mStatements) {
+    		mDb.beginTransaction();
+    		try {
+	    		key = findKey(rowId);
+	    		if (key == null) return false;
+	    		SQLiteStatement stmt = getStatement(SQL_DELETE_BY_ID);
+	    		stmt.bindLong(1, rowId);
+	    		if (executeUpdateDelete(stmt) == 0) return false;
+	    		HashMap<String, String> changes = new HashMap<String, String>();
+	    		changes.put(key, null);
+	    		updateSiteIndex(changes);
+	    		mDb.setTransactionSuccessful();
+    		} finally { mDb.endTransaction(); }
+    	}
+    	ChangeListener listener = mListener;
+    	if (listener != null) listener.onRecordDeleted(key);
+    	return true;
     }
 
     /**
@@ -225,8 +746,21 @@ public class ParamsDbAdapter {
      * @return True if deleted, false otherwise
      */
     public boolean deleteRecord(String site) {
-        return mDb.delete(DATABASE_TABLE, DBFIELD_SITE + "='" + site + "'",
-        	null) > 0;
+    	synchronized (mStatements) {
+    		mDb.beginTransaction();
+    		try {
+	    		SQLiteStatement stmt = getStatement(SQL_DELETE_BY_KEY);
+	    		stmt.bindBlob(1, SiteParameters.keyToBytes(site));
+	    		if (executeUpdateDelete(stmt) == 0) return false;
+	    		HashMap<String, String> changes = new HashMap<String, String>();
+	    		changes.put(site, null);
+	    		updateSiteIndex(changes);
+	    		mDb.setTransactionSuccessful();
+    		} finally { mDb.endTransaction(); }
+    	}
+    	ChangeListener listener = mListener;
+    	if (listener != null) listener.onRecordDeleted(site);
+    	return true;
     }
     
     /**
@@ -234,17 +768,372 @@ public class ParamsDbAdapter {
      * @return A count of the number of sites deleted
      */
     public int deleteAllRecords() {
-    	return mDb.delete(DATABASE_TABLE, "1", null);
+    	int count = 0;
+    	synchronized (mStatements) {
+    		mDb.beginTransaction();
+    		try {
+    			count = mDb.delete(DATABASE_TABLE, "1", null);
+    			// With no records left, we know exactly what the index should
+    			// look like.  If we can't save it for some reason, just throw
+    			// it away instead.
+    			try {
+    				TreeMap<String, String> empty = new TreeMap<String, String>();
+    				writeSiteIndex(SiteIndex.encode(empty), 0,
+    					SiteIndex.checksum(empty.keySet().iterator()));
+    			} catch (Exception e) { deleteSiteIndex(); }
+    			mDb.setTransactionSuccessful();
+    		} finally { mDb.endTransaction(); }
+    	}
+    	ChangeListener listener = mListener;
+    	if (listener != null) listener.onAllRecordsDeleted();
+    	return count;
+    }
+
+    /**
+     * Load the site index, a map of every site key in the database to its
+     * site name.  This lets the site list be built without decrypting every
+     * record.  The index is only returned if its row count and checksum
+     * match the records actually in the database; otherwise, the caller
+     * should fall back to decrypting the records and then save a new index
+     * with saveSiteIndex().  If any changes have been recorded since the
+     * index was last written, they're played back on top of it and then
+     * folded into a fresh copy, so the next load is back to one decryption.
+     * @return The site index, sorted by site key, or null if there is no
+     * valid index
+     */
+    public TreeMap<String, String> fetchSiteIndex() {
+    	try {
+    		// Read the index, any changes made since it was written, and what
+    		// we need to check them against the records.  We do all this in a
+    		// transaction so the records can't change in between.
+    		String data = null;
+    		long rowCount = 0;
+    		long checksum = 0;
+    		ArrayList<String> deltas = null;
+    		long actualCount = 0;
+    		long actualChecksum = 0;
+    		synchronized (mStatements) {
+    			mDb.beginTransaction();
+    			try {
+    				Cursor c = mDb.rawQuery(SQL_INDEX_FETCH, null);
+    				try {
+    					if (!c.moveToFirst()) return null;
+    					data = c.getString(0);
+    					rowCount = c.getLong(1);
+    					checksum = c.getLong(2);
+    				} finally { c.close(); }
+    				deltas = fetchSiteIndexDeltas();
+    				// If nothing has changed since the index was written, these
+    				// checks are cheap enough to do before we go to the trouble
+    				// of decrypting anything:
+    				actualCount = getStatement(SQL_COUNT).simpleQueryForLong();
+    				if (deltas.isEmpty() && actualCount != rowCount) return null;
+    				actualChecksum = SiteIndex.checksum(fetchAllKeys().iterator());
+    				if (deltas.isEmpty() && actualChecksum != checksum) return null;
+    			} finally { mDb.endTransaction(); }
+    		}
+    		// Decrypt the index and make sure it's what we wrote:
+    		TreeMap<String, String> sitesByKey = SiteIndex.decode(data);
+    		if (sitesByKey.size() != rowCount ||
+    			SiteIndex.checksum(sitesByKey.keySet().iterator()) != checksum)
+    			return null;
+    		if (deltas.isEmpty()) return sitesByKey;
+    		// Play back the changes, in order, and make sure the result
+    		// matches the records:
+    		for (String delta : deltas) SiteIndex.applyChanges(delta, sitesByKey);
+    		if (sitesByKey.size() != actualCount ||
+    			SiteIndex.checksum(sitesByKey.keySet().iterator()) != actualChecksum)
+    			return null;
+    		// Now fold the changes into a fresh copy of the index.  If anything
+    		// was written since we read it, saveSiteIndex() will notice and
+    		// leave the old index and its changes alone, which is fine; we'll
+    		// just try again next time.
+    		saveSiteIndex(sitesByKey);
+    		return sitesByKey;
+    	}
+    	// If anything went wrong, there's no usable index:
+    	catch (Exception e) { return null; }
+    }
+
+    /**
+     * Save a new site index.  This should be called after the site list has
+     * been built by decrypting every record, so the next build can use the
+     * index instead.  The index is only saved if it contains exactly the
+     * site keys in the database; if the records have changed since they
+     * were read, or some of them couldn't be decrypted, nothing is saved.
+     * @param sitesByKey A map of every site key in the database to its site
+     * name
+     * @return True if the index was saved, false otherwise
+     */
+    public boolean saveSiteIndex(Map<String, String> sitesByKey) {
+    	try {
+    		// Do the encryption before we lock anything:
+    		TreeMap<String, String> sorted = new TreeMap<String, String>(sitesByKey);
+    		String data = SiteIndex.encode(sorted);
+    		long checksum = SiteIndex.checksum(sorted.keySet().iterator());
+    		synchronized (mStatements) {
+    			mDb.beginTransaction();
+    			try {
+    				ArrayList<String> keys = fetchAllKeys();
+    				if (!keys.equals(new ArrayList<String>(sorted.keySet())))
+    					return false;
+    				writeSiteIndex(data, keys.size(), checksum);
+    				mDb.setTransactionSuccessful();
+    				return true;
+    			} finally { mDb.endTransaction(); }
+    		}
+    	}
+    	catch (Exception e) { return false; }
     }
 
     /**
-     * Return a Cursor over the list of all parameter items in the database
+     * Record a set of changes to the site index, if there is one.  This is
+     * called by every method that writes records; callers must hold the lock
+     * on mStatements and have a transaction open, so the index is only
+     * changed if the records are.  We used to decrypt the whole index, apply
+     * the changes, and encrypt it all over again, which made every save cost
+     * as much as the entire site list.  Now we only encrypt the changes
+     * themselves and add them to the delta table, and fetchSiteIndex() plays
+     * them back.  Once more than SITE_INDEX_DELTA_LIMIT sets have piled up,
+     * we fold them into the index here so loading it doesn't keep getting
+     * slower.  If the index can't be updated for some reason, it is thrown
+     * away, and a new one will be saved the next time the site list is built.
+     * @param changes A map of the site keys that have changed to their new
+     * site names.  Deleted sites should map to null.
+     * @throws SQLException Thrown if the database could not be written
+     */
+    private void updateSiteIndex(Map<String, String> changes) throws SQLException {
+    	if (changes.isEmpty()) return;
+    	// If there's no index, there's nothing to keep up to date:
+    	if (getStatement(SQL_INDEX_EXISTS).simpleQueryForLong() == 0) return;
+    	try {
+    		SQLiteStatement insert = getStatement(SQL_DELTA_INSERT);
+    		insert.bindString(1, SiteIndex.encodeChanges(changes));
+    		insert.executeInsert();
+    		if (getStatement(SQL_DELTA_COUNT).simpleQueryForLong() <=
+    			SITE_INDEX_DELTA_LIMIT || compactSiteIndex())
+    			return;
+    	}
+    	catch (Exception e) {}
+    	deleteSiteIndex();
+    }
+
+    /**
+     * Fold the recorded changes into a fresh copy of the site index.  Callers
+     * must hold the lock on mStatements and have a transaction open.  This
+     * decrypts and re-encrypts the whole index, so updateSiteIndex() only
+     * does it once every SITE_INDEX_DELTA_LIMIT writes.
+     * @return True if the index was rewritten, or false if there is no index
+     * or it doesn't match the records
+     * @throws Exception Thrown if the index could not be decrypted, encrypted,
+     * or written
+     */
+    private boolean compactSiteIndex() throws Exception {
+    	String data = null;
+    	Cursor c = mDb.rawQuery(SQL_INDEX_FETCH, null);
+    	try {
+    		if (!c.moveToFirst()) return false;
+    		data = c.getString(0);
+    	} finally { c.close(); }
+    	TreeMap<String, String> sitesByKey = SiteIndex.decode(data);
+    	for (String delta : fetchSiteIndexDeltas())
+    		SiteIndex.applyChanges(delta, sitesByKey);
+    	ArrayList<String> keys = fetchAllKeys();
+    	if (!keys.equals(new ArrayList<String>(sitesByKey.keySet())))
+    		return false;
+    	writeSiteIndex(SiteIndex.encode(sitesByKey), keys.size(),
+    		SiteIndex.checksum(keys.iterator()));
+    	return true;
+    }
+
+    /**
+     * Get the encrypted changes recorded since the site index was last
+     * written, oldest first.  Callers must hold the lock on mStatements.
+     * @return The encrypted changes, as returned by SiteIndex.encodeChanges()
+     * @throws SQLException Thrown if the database could not be queried
+     */
+    private ArrayList<String> fetchSiteIndexDeltas() throws SQLException {
+    	ArrayList<String> deltas = new ArrayList<String>();
+    	Cursor c = mDb.rawQuery(SQL_DELTA_FETCH, null);
+    	try {
+    		while (c.moveToNext()) deltas.add(c.getString(0));
+    	} finally { c.close(); }
+    	return deltas;
+    }
+
+    /**
+     * Write the site index.  Callers must hold the lock on mStatements.  Any
+     * recorded changes are thrown away, since the new index already has them.
+     * @param data The encrypted index, as returned by SiteIndex.encode()
+     * @param rowCount The number of records in the index
+     * @param checksum The checksum of the site keys in the index
+     * @throws SQLException Thrown if the database could not be written
+     */
+    private void writeSiteIndex(String data, long rowCount, long checksum)
+    	throws SQLException
+    {
+    	SQLiteStatement stmt = getStatement(SQL_INDEX_SAVE);
+    	stmt.bindString(1, data);
+    	stmt.bindLong(2, rowCount);
+    	stmt.bindLong(3, checksum);
+    	stmt.execute();
+    	getStatement(SQL_DELTA_DELETE).execute();
+    }
+
+    /**
+     * Throw away the site index and any recorded changes to it.  Callers must
+     * hold the lock on mStatements.
+     * @throws SQLException Thrown if the database could not be written
+     */
+    private void deleteSiteIndex() throws SQLException {
+    	getStatement(SQL_INDEX_DELETE).execute();
+    	getStatement(SQL_DELTA_DELETE).execute();
+    }
+
+    /**
+     * Get every site key in the database, in sorted order.  This only reads
+     * the site key index, so it's quick even with a lot of records.
+     * @return The site keys
+     * @throws SQLException Thrown if the database could not be queried
+     */
+    private ArrayList<String> fetchAllKeys() throws SQLException {
+    	ArrayList<String> keys = new ArrayList<String>();
+    	Cursor c = mDb.rawQuery(SQL_ALL_KEYS, null);
+    	try {
+    		while (c.moveToNext()) {
+    			// keyToBytes() wrote every key in the table, so this should
+    			// never be null, but we don't want one bad row to break the
+    			// sort:
+    			String key = SiteParameters.keyFromBytes(c.getBlob(0));
+    			if (key != null) keys.add(key);
+    		}
+    	} finally { c.close(); }
+    	Collections.sort(keys);
+    	return keys;
+    }
+
+    /**
+     * Find the site key of the record with the specified row ID.  Callers
+     * must hold the lock on mStatements.  Compiled statements can only
+     * return numbers and Strings, not BLOBs, so this has to use a cursor.
+     * @param rowId The row ID of the record
+     * @return The site key, or null if there is no such record
+     * @throws SQLException Thrown if the database could not be queried
+     */
+    private String findKey(long rowId) throws SQLException {
+    	Cursor c = mDb.rawQuery(SQL_FIND_KEY_BY_ID,
+    		new String[] { String.valueOf(rowId) });
+    	try {
+    		if (!c.moveToFirst()) return null;
+    		return SiteParameters.keyFromBytes(c.getBlob(0));
+    	} finally { c.close(); }
+    }
+
+    /**
+     * Find the row ID of the record with the specified site key.  Callers
+     * must hold the lock on mStatements.
+     * @param key The site key of the record
+     * @return The row ID, or DB_ERROR if there is no such record
+     * @throws SQLException Thrown if the database could not be queried
+     */
+    private long findRowId(String key) throws SQLException {
+    	SQLiteStatement find = getStatement(SQL_FIND_ID_BY_KEY);
+    	find.bindBlob(1, SiteParameters.keyToBytes(key));
+    	try { return find.simpleQueryForLong(); }
+    	catch (SQLiteDoneException notFound) { return DB_ERROR; }
+    }
+
+    /**
+     * Return a Cursor over the list of all parameter items in the database.
+     * Note that the site key and parameters columns are BLOBs, so they must
+     * be read with getBlob() rather than getString().  This goes for all of
+     * the record cursors.
      * 
      * @return Cursor over all items
      */
     public Cursor fetchAllSites() {
         return mDb.query(DATABASE_TABLE, new String[] {DBFIELD_ROWID,
-        	DBFIELD_SITE, DBFIELD_PARAMS}, null, null, null, null, null);
+        	DBFIELD_SITE, DBFIELD_PARAMS, DBFIELD_VERSION}, null, null, null,
+        	null, null);
+    }
+
+    /**
+     * Return a Cursor over the next few parameter items in the database, in
+     * row ID order.  This is meant for bulk operations that need to look at
+     * many records at once (such as exporting), which can walk the table a
+     * batch at a time and pick out the records they want by key rather than
+     * querying the database once per site.  To walk through the whole table,
+     * pass the row ID of the last record from the previous batch.  Each
+     * batch is a single query, so no lock is held between batches, and rows
+     * are never skipped or returned twice even if records are written in
+     * between.  Copy each batch out and close the cursor before doing any
+     * slow work with it.
+     * @param afterRowId Only return records with a row ID greater than this.
+     * Pass zero to start at the beginning.
+     * @param limit The maximum number of records to return
+     * @return Cursor over the records
+     */
+    public Cursor fetchRecordsAfter(long afterRowId, int limit) {
+        return mDb.rawQuery(SQL_FETCH_AFTER, new String[] {
+        	String.valueOf(afterRowId), String.valueOf(limit) });
+    }
+
+    /**
+     * Return a Cursor over the next few records that aren't in the current
+     * SiteParameters record format, in row ID order.  To walk through all of
+     * the old records a batch at a time, pass the row ID of the last record
+     * from the previous batch; records that were upgraded in the meantime
+     * simply won't show up again, while records that couldn't be upgraded
+     * won't be returned over and over.
+     * @param afterRowId Only return records with a row ID greater than this.
+     * Pass zero to start at the beginning.
+     * @param limit The maximum number of records to return
+     * @return Cursor over the old records
+     */
+    public Cursor fetchOldRecords(long afterRowId, int limit) {
+        return mDb.rawQuery(SQL_FETCH_OLD, new String[] {
+        	String.valueOf(SiteParameters.RECORD_FORMAT_CURRENT),
+        	String.valueOf(afterRowId), String.valueOf(limit) });
+    }
+
+    /**
+     * Rewrite a batch of records in the current SiteParameters record format.
+     * The site keys and names don't change, so neither the site index nor
+     * the ChangeListener need to know about this.  Each record is only
+     * rewritten if it still holds exactly the data it was read with, so if
+     * the user saves a site while the upgrade is running, their change wins.
+     * All of the records are written in a single transaction.
+     * @param rowIds The row IDs of the records
+     * @param oldParams The encrypted parameter data each record was read with
+     * @param oldVersions The record format each record was read with
+     * @param newParams The encrypted parameter data to replace it with, in
+     * the current record format
+     * @param count The number of records to write from the start of the
+     * arrays
+     * @return The number of records actually rewritten
+     * @throws SQLException Thrown if the database could not be written.  If
+     * this happens, none of the records in the batch are rewritten.
+     */
+    public int upgradeRecords(long[] rowIds, byte[][] oldParams,
+    	int[] oldVersions, byte[][] newParams, int count) throws SQLException
+    {
+    	int upgraded = 0;
+    	synchronized (mStatements) {
+    		mDb.beginTransaction();
+    		try {
+    			SQLiteStatement stmt = getStatement(SQL_UPGRADE_BY_ID);
+    			for (int i = 0; i < count; i++) {
+    				stmt.bindBlob(1, newParams[i]);
+    				stmt.bindLong(2, SiteParameters.RECORD_FORMAT_CURRENT);
+    				stmt.bindLong(3, rowIds[i]);
+    				stmt.bindBlob(4, oldParams[i]);
+    				stmt.bindLong(5, oldVersions[i]);
+    				upgraded += executeUpdateDelete(stmt);
+    			}
+    			mDb.setTransactionSuccessful();
+    		} finally { mDb.endTransaction(); }
+    	}
+    	return upgraded;
     }
 
     /**
@@ -256,10 +1145,11 @@ public class ParamsDbAdapter {
      * @throws SQLException if note could not be found/retrieved
      */
     public Cursor fetchRecord(long rowId) throws SQLException {
-        Cursor mCursor =
-	        mDb.query(true, DATABASE_TABLE, new String[] {DBFIELD_ROWID,
-	        	DBFIELD_SITE, DBFIELD_PARAMS}, DBFIELD_ROWID + "=" + rowId,
-	        		null, null, null, null, null);
+    	// Compiled statements can't return a cursor, so we can't cache this
+    	// one ourselves.  However, since the SQL never changes and the row ID
+    	// is bound as an argument, SQLite can reuse its own compiled copy.
+        Cursor mCursor = mDb.rawQuery(SQL_FETCH_BY_ID,
+        	new String[] { String.valueOf(rowId) });
         if (mCursor != null) {
             mCursor.moveToFirst();
         }
@@ -275,14 +1165,44 @@ public class ParamsDbAdapter {
      * @throws SQLException if note could not be found/retrieved
      */
     public Cursor fetchRecord(String site) throws SQLException {
-        Cursor mCursor =
-	        mDb.query(true, DATABASE_TABLE, new String[] {DBFIELD_ROWID,
-	        	DBFIELD_SITE, DBFIELD_PARAMS}, DBFIELD_SITE + "='" + site + "'",
-	        		null, null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
-        }
-        return mCursor;
+    	// Android can only bind Strings to a query, and the site key is now
+    	// a BLOB, so we can't look it up directly.  Instead, we'll find the
+    	// row ID with a compiled statement, which can bind the raw key, and
+    	// then fetch that row.  If there's no such site, there's no such row
+    	// ID either, so we'll hand back an empty cursor just like before.
+    	long rowId = DB_ERROR;
+    	synchronized (mStatements) { rowId = findRowId(site); }
+    	return fetchRecord(rowId);
+    }
+
+    /**
+     * Find out which of the specified site keys already have a record in the
+     * database.  Site keys are generated from the site name alone, so this
+     * lets us check whether sites exist without having to decrypt every
+     * record to get its site name.  Each key is looked up with a compiled
+     * statement using the site key index, so this is fast even for a long
+     * list of keys.
+     * @param keys The site keys to look for
+     * @return A Set containing each of the specified keys that has a record
+     * in the database.  If none of them do, the Set will be empty.
+     * @throws SQLException Thrown if the database could not be queried
+     */
+    public HashSet<String> containsKeys(Collection<String> keys)
+    	throws SQLException
+    {
+    	// We used to look the keys up a chunk at a time with an "in" query,
+    	// but Android can only bind Strings to a query, and the site keys are
+    	// now BLOBs.  A compiled statement can bind the raw key, and running
+    	// one is cheap enough that a lookup per key is still quick.
+    	HashSet<String> found = new HashSet<String>();
+    	synchronized (mStatements) {
+    		SQLiteStatement count = getStatement(SQL_COUNT_BY_KEY);
+    		for (String key : keys) {
+    			count.bindBlob(1, SiteParameters.keyToBytes(key));
+    			if (count.simpleQueryForLong() > 0) found.add(key);
+    		}
+    	}
+    	return found;
     }
 
     /**
@@ -300,11 +1220,41 @@ public class ParamsDbAdapter {
     {
     	try
     	{
-	        ContentValues args = new ContentValues();
-	        args.put(DBFIELD_SITE, siteParams.getKey());
-	        args.put(DBFIELD_PARAMS, siteParams.exportEncryptedString());
-	        return mDb.update(DATABASE_TABLE, args, DBFIELD_ROWID + "=" +
-	        	rowId, null) > 0;
+    		String key = siteParams.getKey();
+    		byte[] params = siteParams.exportEncryptedBytes();
+    		// If the site is being renamed, the record's site key will change,
+    		// so we need to know the old one to tell the listener it's gone.
+    		// Look it up in the same transaction as the update so it can't
+    		// change in between.
+    		String oldKey = null;
+    		synchronized (mStatements) {
+    			mDb.beginTransaction();
+    			try {
+    				oldKey = findKey(rowId);
+    				if (oldKey == null) return false;
+	    			SQLiteStatement stmt = getStatement(SQL_UPDATE_BY_ID);
+	    			stmt.bindBlob(1, SiteParameters.keyToBytes(key));
+	    			stmt.bindBlob(2, params);
+	    			stmt.bindLong(3, SiteParameters.RECORD_FORMAT_CURRENT);
+	    			stmt.bindLong(4, rowId);
+	    			if (executeUpdateDelete(stmt) == 0) return false;
+	    			// If the site wasn't renamed, its key and name are just
+	    			// what they were before, so the index doesn't change:
+	    			HashMap<String, String> changes = new HashMap<String, String>();
+	    			if (!oldKey.equals(key)) {
+	    				changes.put(oldKey, null);
+	    				changes.put(key, siteParams.getSite());
+	    			}
+	    			updateSiteIndex(changes);
+	    			mDb.setTransactionSuccessful();
+    			} finally { mDb.endTransaction(); }
+    		}
+    		ChangeListener listener = mListener;
+    		if (listener != null) {
+    			if (!oldKey.equals(key)) listener.onRecordDeleted(oldKey);
+    			listener.onRecordSaved(key, siteParams.getSite());
+    		}
+    		return true;
     	}
     	catch (Exception e)
     	{
@@ -321,24 +1271,11 @@ public class ParamsDbAdapter {
     	// Asbestos underpants:
     	try
     	{
-    		// Apparently there isn't a way to query an Android database
-    		// without using a cursor, so that's what we'll do.  Note that
-    		// we name the result "column" because that's the only way I
-    		// can tell to get the value back out.
-	    	Cursor c = mDb.rawQuery("select count(*) as count from " +
-	    			DATABASE_TABLE + ";", null);
-	    	// Assuming that didn't blow up and we got something useful,
-	    	// grab the count value from the result set, close the cursor,
-	    	// and return the count:
-	        if (c != null)
-	        {
-	        	c.moveToFirst();
-	        	int count = c.getInt(c.getColumnIndex("count"));
-	        	c.close();
-	        	return count;
-	        }
-	        // If the cursor failed, obviously there aren't any records:
-	        else return 0;
+    		// Counting doesn't need a cursor; a compiled statement can
+    		// return a single value directly:
+    		synchronized (mStatements) {
+    			return (int)getStatement(SQL_COUNT).simpleQueryForLong();
+    		}
     	}
     	// If anything blew up, we'll assume there are no records:
     	catch (Exception e) { return 0; }
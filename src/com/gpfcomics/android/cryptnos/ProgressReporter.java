@@ -0,0 +1,150 @@
+/* ProgressReporter.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:
+ * REQUIRED BY:   SiteParameters, HashProvider
+ *
+ * This class provides a reusable "progress sink" for long running loops that
+ * need to keep a ProgressDialog up to date.  Originally, each loop built a new
+ * Bundle and posted a new Message to its Handler on every single pass.  That
+ * works fine when each pass is expensive, but password generation can run
+ * tens of thousands of hash iterations, each of which takes only a few
+ * microseconds.  Posting a Message for each of those floods the UI thread's
+ * message queue and can actually cost more than the hashing itself.
+ *
+ * Instead, the loop should create a ProgressReporter and call update() on
+ * every pass.  The reporter samples the progress, only posting a Message when
+ * the completed percentage has changed *and* enough time has passed since the
+ * last update.  This caps the number of Messages at about sixty per second, or
+ * the number of distinct percentages, whichever is lower.  Checking whether
+ * to post is a single integer comparison on most passes, so the cost to the
+ * loop is negligible.  If a percentage comes up too soon after the last post,
+ * the reporter keeps checking the clock on each pass until it's allowed to
+ * post again, so a fast loop skips ahead rather than freezing the dialog
+ * until the next percentage.  The final pass is always posted, so the dialog
+ * never stops short of the end.  Loops that have no Handler to report to
+ * should simply not create a reporter at all and skip the update() call
+ * entirely.  ProgressReporter implements HashProvider.IterationListener, so it
+ * can be handed straight to the hash chain kernels.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.SystemClock;
+
+/**
+ * A reusable progress sink that samples the progress of a long running loop and
+ * posts at most about sixty updates per second to a Handler.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class ProgressReporter implements HashProvider.IterationListener {
+
+	/* Public Constants *******************************************************/
+
+	/** The minimum number of milliseconds between two sampled updates.  This
+	 *  works out to roughly sixty updates per second, which is about as fast
+	 *  as the screen can refresh anyway. */
+	public static final long MIN_UPDATE_INTERVAL = 1000L / 60L;
+
+	/* Private Members **********************************************************/
+
+	/** The Handler to post our progress Messages to */
+	private final Handler handler;
+	/** The Bundle key our progress value will be stored under */
+	private final String key;
+	/** The total number of passes the loop will perform */
+	private final int total;
+	/** The next pass at which the completed percentage changes since our
+	 *  last post.  Until the loop reaches this pass, update() doesn't need to
+	 *  do anything. */
+	private int nextSample = 0;
+	/** The uptime in milliseconds at which we last posted a Message */
+	private long lastPost = 0L;
+
+	/**
+	 * Create a new ProgressReporter
+	 * @param handler The Handler to post progress Messages to.  This cannot be
+	 * null; if there is no Handler, don't create a ProgressReporter.
+	 * @param key The Bundle key to store the progress value under
+	 * @param total The total number of passes the loop will perform
+	 */
+	public ProgressReporter(Handler handler, String key, int total)
+	{
+		this.handler = handler;
+		this.key = key;
+		this.total = total;
+		// Back date the last post so the very first sample always goes out:
+		lastPost = SystemClock.uptimeMillis() - MIN_UPDATE_INTERVAL;
+	}
+
+	/**
+	 * Notify the reporter that the loop has completed another pass.  Call this
+	 * on every pass; the reporter will decide whether or not it's worth telling
+	 * the Handler about it.
+	 * @param current The pass that was just completed, counting from zero.
+	 * This value will be posted to the Handler as-is if we decide to post an
+	 * update.
+	 */
+	public void update(int current)
+	{
+		// The vast majority of calls will bail out right here:
+		if (current < nextSample) return;
+		// If we get this far, the percentage has changed.  Make sure we're not
+		// posting faster than the UI can keep up.  If it's too soon, we'll
+		// leave nextSample where it is and try again on the next pass, so we
+		// post as soon as we're allowed to rather than waiting for the next
+		// percentage.  The last pass always goes out, though, no matter how
+		// soon it comes:
+		long now = SystemClock.uptimeMillis();
+		if (current < total - 1 && now - lastPost < MIN_UPDATE_INTERVAL) return;
+		// We're posting, so work out when the percentage will change next so
+		// we can skip everything in between.  Never skip past the last pass,
+		// though, or it would never get posted:
+		if (total > 0) {
+			long percent = (long)current * 100L / (long)total;
+			nextSample = (int)Math.min(((percent + 1L) * (long)total + 99L) /
+				100L, (long)total - 1L);
+		} else nextSample = Integer.MAX_VALUE;
+		lastPost = now;
+		post(current);
+	}
+
+	/**
+	 * Unconditionally post a progress value to the Handler, bypassing the
+	 * sampling.  This is useful for the final "we're done" update, which
+	 * should never be dropped.
+	 * @param value The progress value to post
+	 */
+	public void post(int value)
+	{
+		Message msg = handler.obtainMessage();
+		Bundle b = new Bundle();
+		b.putInt(key, value);
+		msg.setData(b);
+		handler.sendMessage(msg);
+	}
+
+}
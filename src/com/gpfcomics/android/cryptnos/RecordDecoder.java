@@ -0,0 +1,258 @@
+/* RecordDecoder.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      SiteParameters
+ * REQUIRED BY:   CryptnosApplication, ImportExportHandler
+ *
+ * This class decodes encrypted site parameter records from the database in
+ * parallel.  Records in the original format are each encrypted with their own
+ * key, derived from the site key by a password-based key derivation, so
+ * turning one of those rows back into a SiteParameters object is surprisingly
+ * expensive.  Newer records share a single key and are much cheaper to
+ * decode, but there's still no reason not to spread them across the cores.
+ * Building the site list or exporting the whole database means doing this for
+ * every single row, and originally we did that one row at a time on a single
+ * thread.  Most modern phones have several CPU cores sitting idle while that
+ * happens.
+ *
+ * To use this class, create a new RecordDecoder with a Listener and walk your
+ * database cursor, passing each row's site key, encrypted data, and record
+ * format version to add().  Each row is handed off to a small pool of worker
+ * threads as soon as it is added, so the decoding starts while you're still
+ * reading the cursor.  The pool is sized to the number of CPU cores, so we
+ * never run more threads than the device can actually use.  Once all the rows
+ * are added, call decodeAll() to wait for the rest.  The Listener is called
+ * back once for each row, always on the thread that owns the decoder, and
+ * always in the same order the rows were added, so the caller doesn't have to
+ * worry about the threading at all.
+ *
+ * We only ever keep a couple of records per core in flight.  Once that window
+ * is full, add() waits for the oldest record and passes it to the Listener
+ * before queueing the new one.  That way, an export can write each record out
+ * while it's still reading the cursor, and we never hold more than a handful
+ * of decoded records in memory no matter how big the database gets.  It also
+ * means the Listener may be called from inside add(), so the caller should be
+ * ready for that.
+ *
+ * Note that cursors themselves are not thread safe, so they should only ever
+ * be read by the thread that owns the decoder.  Only the decoding happens on
+ * the worker threads.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes encrypted site parameter records on a pool of worker threads sized
+ * to the number of CPU cores, returning the results in their original order.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class RecordDecoder {
+
+	/**
+	 * The interface for anyone who wants to receive decoded records from a
+	 * RecordDecoder.
+	 * @author Jeffrey T. Darlington
+	 * @version 1.3.5
+	 * @since 1.3.5
+	 */
+	public interface Listener {
+		/**
+		 * Called once for each record added to the decoder, in the order the
+		 * records were added.  This may be called from inside either add() or
+		 * decodeAll().
+		 * @param index The zero-based index of the record
+		 * @param params The decoded SiteParameters, or null if the record
+		 * could not be decoded
+		 * @return True to keep going, or false to stop decoding and discard
+		 * any remaining records
+		 * @throws Exception Any exception thrown here stops decoding and is
+		 * thrown back out of add() or decodeAll()
+		 */
+		public boolean onRecordDecoded(int index, SiteParameters params)
+			throws Exception;
+	}
+
+	/* Private Constants ********************************************************/
+
+	/** The number of records we'll keep in flight for each worker thread.
+	 *  Two is enough to keep every worker busy while we hand the finished
+	 *  records off to the listener, without letting the backlog grow. */
+	private static final int RECORDS_PER_THREAD = 2;
+
+	/* Private Members **********************************************************/
+
+	/** A reference to the full Cryptnos application */
+	private final CryptnosApplication theApp;
+	/** The listener to pass the decoded records to */
+	private final Listener listener;
+	/** Our pool of worker threads */
+	private ExecutorService pool = null;
+	/** The most records we'll allow in flight at once */
+	private final int window;
+	/** The pending results of the records in flight, oldest first */
+	private final LinkedList<Future<SiteParameters>> pending =
+		new LinkedList<Future<SiteParameters>>();
+	/** The number of records added to the decoder so far */
+	private int added = 0;
+	/** The number of records passed to the listener so far */
+	private int delivered = 0;
+
+	/**
+	 * Create a new RecordDecoder
+	 * @param theApp A reference to the full Cryptnos application
+	 * @param listener The Listener to pass the decoded records to
+	 */
+	public RecordDecoder(CryptnosApplication theApp, Listener listener)
+	{
+		this.theApp = theApp;
+		this.listener = listener;
+		// There's no point running more threads than we have cores.  The
+		// work is almost entirely CPU bound, so any extra threads would just
+		// fight with each other for time.  We'll make the threads daemons so
+		// they can never keep the process alive on their own.
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (threads < 1) threads = 1;
+		window = threads * RECORDS_PER_THREAD;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RecordDecoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Add a record to be decoded.  The record is queued for the worker threads
+	 * right away, so decoding can start while the caller is still reading the
+	 * rest of its records.  If there are already too many records in flight,
+	 * we'll first wait for the oldest one and pass it to the listener.
+	 * @param siteKey The raw obscured site key from the database
+	 * @param encryptedData The raw encrypted parameter data from the database
+	 * @param format The record format version from the database
+	 * @return True if the record was added, or false if the listener asked us
+	 * to stop (or we've already been stopped) and the caller should stop
+	 * adding records
+	 * @throws Exception Thrown if the listener throws an exception, or if
+	 * we're interrupted while waiting for the workers
+	 */
+	public boolean add(final byte[] siteKey, final byte[] encryptedData,
+		final int format) throws Exception
+	{
+		if (pool == null) return false;
+		// Make room in the window first.  If the listener tells us to stop
+		// while we're doing that, shut everything down and tell the caller:
+		while (pending.size() >= window)
+		{
+			if (!deliverNext())
+			{
+				cancel();
+				return false;
+			}
+		}
+		pending.add(pool.submit(new Callable<SiteParameters>() {
+			public SiteParameters call() throws Exception {
+				// We're decoding every record, so keep these keys out of
+				// the key cache:
+				return new SiteParameters(theApp, siteKey, encryptedData,
+					format, false);
+			}
+		}));
+		added++;
+		return true;
+	}
+
+	/**
+	 * Get the number of records added to the decoder so far
+	 * @return The number of records
+	 */
+	public int size() { return added; }
+
+	/**
+	 * Wait for the rest of the records to be decoded and pass them to the
+	 * listener, in the order the records were added.  The worker threads are
+	 * shut down when this returns, so the decoder cannot be used again
+	 * afterward.
+	 * @return True if every record was passed to the listener, or false if
+	 * the listener asked us to stop early
+	 * @throws Exception Thrown if the listener throws an exception, or if
+	 * we're interrupted while waiting for the workers
+	 */
+	public boolean decodeAll() throws Exception
+	{
+		try
+		{
+			// If add() already stopped us, there's nothing left to do:
+			if (pool == null) return delivered == added;
+			while (!pending.isEmpty())
+				if (!deliverNext()) return false;
+			return true;
+		}
+		// No matter how we got here, shut down the workers.  If we're leaving
+		// early, this also throws away anything they haven't started yet:
+		finally { cancel(); }
+	}
+
+	/**
+	 * Stop decoding and shut down the worker threads.  Any records that
+	 * haven't been passed to the listener yet are discarded.
+	 */
+	public void cancel()
+	{
+		if (pool != null)
+		{
+			pool.shutdownNow();
+			pool = null;
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Wait for the oldest record in flight to be decoded and pass it to the
+	 * listener
+	 * @return The listener's return value
+	 * @throws Exception Thrown if the listener throws an exception, or if
+	 * we're interrupted while waiting for the workers
+	 */
+	private boolean deliverNext() throws Exception
+	{
+		// Take the result out of the window before we wait on it, so we're not
+		// holding on to it once it's been handed off.  If the worker couldn't
+		// decode the record, we'll pass along a null and let the listener
+		// decide what to do about it:
+		Future<SiteParameters> result = pending.removeFirst();
+		SiteParameters params = null;
+		try { params = result.get(); }
+		catch (ExecutionException e) { params = null; }
+		return listener.onRecordDecoded(delivered++, params);
+	}
+
+}
@@ -0,0 +1,147 @@
+/* RecordEncoder.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      SiteParameters
+ * REQUIRED BY:   ImportActivity
+ *
+ * This class is the other half of RecordDecoder:  it encrypts site parameters
+ * into database records in parallel.  Before a site can be written to the
+ * database, its site key has to be generated and its parameters encrypted,
+ * and both of those involve the same sort of expensive hashing and key
+ * derivation that makes decoding records so slow.  When importing a file with
+ * hundreds or thousands of sites, doing that one site at a time on the same
+ * thread that's writing to the database means the database spends most of
+ * its time waiting on the encryption, and vice versa.
+ *
+ * To use this class, create a new RecordEncoder and add() each SiteParameters
+ * object you want to write.  Each one is handed off to a small pool of worker
+ * threads, sized to the number of CPU cores, as soon as it is added.  Then
+ * call get() for each record in the order they were added.  That waits for
+ * the record to be finished if it isn't already, so the caller can write each
+ * record to the database while the workers are busy encrypting the ones
+ * after it.  Call cancel() when you're done to shut down the workers.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encrypts site parameters into database records on a pool of worker threads
+ * sized to the number of CPU cores, returning the results in their original
+ * order.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class RecordEncoder {
+
+	/* Private Members **********************************************************/
+
+	/** Our pool of worker threads */
+	private ExecutorService pool = null;
+	/** The pending encrypted parameter data of each record, in the order they
+	 *  were added */
+	private final ArrayList<Future<byte[]>> results =
+		new ArrayList<Future<byte[]>>();
+
+	/**
+	 * Create a new RecordEncoder
+	 */
+	public RecordEncoder()
+	{
+		// See RecordDecoder for why we size the pool this way:
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (threads < 1) threads = 1;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RecordEncoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Add a set of site parameters to be encrypted.  The record is queued for
+	 * the worker threads right away.  The SiteParameters object must not be
+	 * touched until its record has been fetched with get(), after which its
+	 * site key will have been generated and can be read with getKey().
+	 * @param params The SiteParameters to encrypt
+	 */
+	public void add(final SiteParameters params)
+	{
+		results.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				// Generate the site key here too, so the database writer
+				// doesn't have to hash it while holding the database:
+				params.getKey();
+				return params.exportEncryptedBytes();
+			}
+		}));
+	}
+
+	/**
+	 * Get the number of records added to the encoder so far
+	 * @return The number of records
+	 */
+	public int size() { return results.size(); }
+
+	/**
+	 * Get an encrypted record, waiting for it to be finished if necessary.
+	 * Each record can only be fetched once.
+	 * @param index The zero-based index of the record, in the order it was
+	 * added
+	 * @return The encrypted parameter data, or null if the record could not
+	 * be encrypted
+	 * @throws Exception Thrown if we're interrupted while waiting for the
+	 * workers
+	 */
+	public byte[] get(int index) throws Exception
+	{
+		// Let go of the result as soon as we've handed it off, so we're not
+		// holding on to every encrypted record at once:
+		Future<byte[]> result = results.set(index, null);
+		try { return result.get(); }
+		catch (ExecutionException e) { return null; }
+	}
+
+	/**
+	 * Stop encrypting and shut down the worker threads.  Any records that
+	 * haven't been encrypted yet are discarded, and the encoder cannot be
+	 * used again afterward.
+	 */
+	public void cancel()
+	{
+		if (pool != null)
+		{
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+/* RecordUpgrader.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      SiteParameters, ParamsDbAdapter
+ * REQUIRED BY:   CryptnosApplication
+ *
+ * This thread rewrites old site parameter records in the current record
+ * format.  The original format encrypted each record under a key derived from
+ * its own site key, so every record read meant another expensive key
+ * derivation.  The newer format encrypts every record under a single vault key
+ * that only has to be derived once per session.  Converting the old records
+ * means decrypting each of them the slow way one last time, which is far too
+ * much work to do while upgrading the database itself, so instead we do it
+ * here, quietly, in the background.
+ *
+ * The upgrader walks the old records a small batch at a time.  Each batch is
+ * read, decrypted, and re-encrypted without holding the database, then written
+ * back in a single transaction.  A record is only written back if it hasn't
+ * changed since we read it, so if the user saves a site while we're working,
+ * their change always wins.  Records that can't be decrypted are simply left
+ * alone in their old format.  The thread runs at the lowest priority so it
+ * doesn't get in the way of anything the user is actually doing, and it can
+ * be stopped at any time; whatever it hasn't gotten to yet will be picked up
+ * the next time it runs.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import android.database.Cursor;
+
+/**
+ * A background thread that rewrites old site parameter records in the
+ * current record format.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class RecordUpgrader extends Thread {
+
+	/* Private Constants ********************************************************/
+
+	/** The number of records to read and write at a time.  This keeps each
+	 *  write transaction short, so the user is never kept waiting on us for
+	 *  long if they happen to save something while we're working. */
+	private static final int BATCH_SIZE = 50;
+
+	/* Private Members **********************************************************/
+
+	/** A reference to the full Cryptnos application */
+	private final CryptnosApplication theApp;
+	/** The database adapter to read and write the records with */
+	private final ParamsDbAdapter dbHelper;
+	/** Set to true when we've been asked to stop */
+	private volatile boolean stopped = false;
+
+	/**
+	 * Create a new RecordUpgrader.  Call start() to start upgrading.
+	 * @param theApp A reference to the full Cryptnos application
+	 * @param dbHelper The database adapter to read and write the records with
+	 */
+	public RecordUpgrader(CryptnosApplication theApp, ParamsDbAdapter dbHelper)
+	{
+		super("RecordUpgrader");
+		this.theApp = theApp;
+		this.dbHelper = dbHelper;
+		// This is strictly housekeeping, so stay out of everyone's way, and
+		// never keep the process alive on our own:
+		setPriority(Thread.MIN_PRIORITY);
+		setDaemon(true);
+	}
+
+	@Override
+	public void run()
+	{
+		long[] rowIds = new long[BATCH_SIZE];
+		byte[][] keys = new byte[BATCH_SIZE][];
+		byte[][] oldParams = new byte[BATCH_SIZE][];
+		int[] oldVersions = new int[BATCH_SIZE];
+		byte[][] newParams = new byte[BATCH_SIZE][];
+		long lastRowId = 0;
+		// Asbestos underpants:
+		try
+		{
+			while (!stopped)
+			{
+				// Read the next batch of old records.  We'll copy everything
+				// out and close the cursor before we start decrypting, so we
+				// don't leave it open any longer than we need to:
+				int read = 0;
+				Cursor cursor = dbHelper.fetchOldRecords(lastRowId, BATCH_SIZE);
+				try
+				{
+					while (read < BATCH_SIZE && cursor.moveToNext())
+					{
+						rowIds[read] = cursor.getLong(0);
+						keys[read] = cursor.getBlob(1);
+						oldParams[read] = cursor.getBlob(2);
+						oldVersions[read] = cursor.getInt(3);
+						read++;
+					}
+				}
+				finally { cursor.close(); }
+				// If there's nothing left, we're done:
+				if (read == 0) break;
+				lastRowId = rowIds[read - 1];
+				// Decrypt each record and encrypt it again in the current
+				// format.  If a record can't be decrypted, there's nothing we
+				// can do with it, so we'll leave it out of the batch.  We pack
+				// the good ones down to the front of the arrays as we go.
+				int count = 0;
+				for (int i = 0; i < read && !stopped; i++)
+				{
+					try
+					{
+						SiteParameters params = new SiteParameters(theApp,
+							keys[i], oldParams[i], oldVersions[i], false);
+						newParams[count] = params.exportEncryptedBytes();
+						rowIds[count] = rowIds[i];
+						oldParams[count] = oldParams[i];
+						oldVersions[count] = oldVersions[i];
+						count++;
+					}
+					catch (Exception e) {}
+				}
+				if (stopped) break;
+				if (count > 0)
+					dbHelper.upgradeRecords(rowIds, oldParams, oldVersions,
+						newParams, count);
+			}
+		}
+		// If anything blew up, just give up for now.  Anything we didn't get
+		// to is still perfectly readable in the old format, and we'll try
+		// again the next time we're started.
+		catch (Exception e) {}
+	}
+
+	/**
+	 * Ask the upgrader to stop.  It will stop as soon as it finishes the
+	 * record it's working on, without writing the rest of its current batch.
+	 */
+	public void cancel()
+	{
+		stopped = true;
+	}
+
+}
@@ -0,0 +1,273 @@
+/* SiteCatalog.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      
+ * REQUIRED BY:   CryptnosApplication
+ *
+ * This class holds a snapshot of the site list:  the names of every site in
+ * the database, sorted for display, along with the site key of each one.
+ * Originally, CryptnosApplication kept the site list in a plain static array
+ * and a Hashtable for searching.  Any change to the database threw both away,
+ * which meant decrypting every single record again the next time the list was
+ * needed, just to pick up one new or deleted site.
+ *
+ * A SiteCatalog never changes once it has been built.  Instead, withSite()
+ * and withoutSite() return a new catalog with the change applied, leaving the
+ * original alone.  The site names are kept sorted, so finding where a site
+ * belongs is a quick binary search, and building the new catalog is just a
+ * matter of copying the old arrays around it.  That's a lot cheaper than
+ * rebuilding the list from scratch, but it's still a copy of the whole list:
+ * each call is O(n) for a catalog of n sites.  So when many sites are saved at
+ * once, such as during an import, use withSites() instead, which applies the
+ * whole batch with a single O(n + m log m) merge for m new sites, rather than
+ * m separate copies.  Since a catalog can never change, any
+ * number of threads can read the same one without any locking at all; the
+ * application simply swaps in the new catalog when the database changes.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable, sorted snapshot of the Cryptnos site list.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public final class SiteCatalog {
+
+	/* Public Constants *******************************************************/
+
+	/** An empty catalog, for when there are no sites in the database */
+	public static final SiteCatalog EMPTY =
+		new SiteCatalog(new String[0], new HashMap<String, String>());
+
+	/* Private Constants ********************************************************/
+
+	/** The order we sort the site names in.  We want the same case-insensitive
+	 *  order the site list has always used, but the binary searches need every
+	 *  name to have exactly one place in the list, so names that differ only
+	 *  by case are put in their natural order. */
+	private static final Comparator<String> SITE_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int result = String.CASE_INSENSITIVE_ORDER.compare(a, b);
+			return result != 0 ? result : a.compareTo(b);
+		}
+	};
+
+	/* Private Members **********************************************************/
+
+	/** The site names, sorted by SITE_ORDER */
+	private final String[] sites;
+	/** A map of site keys to site names, so we can find a site when all we
+	 *  know is its key (such as when a record is deleted from the database) */
+	private final HashMap<String, String> sitesByKey;
+
+	/**
+	 * Create a new SiteCatalog.  This takes ownership of the arrays passed in,
+	 * which must never be changed afterward.
+	 * @param sites The site names, sorted by SITE_ORDER
+	 * @param sitesByKey A map of site keys to site names
+	 */
+	private SiteCatalog(String[] sites, HashMap<String, String> sitesByKey)
+	{
+		this.sites = sites;
+		this.sitesByKey = sitesByKey;
+	}
+
+	/* Public Methods ***********************************************************/
+
+	/**
+	 * Build a new catalog from scratch
+	 * @param sitesByKey A map of site keys to site names.  The map is copied,
+	 * so the caller is free to do what it likes with it afterward.
+	 * @return A new SiteCatalog
+	 */
+	public static SiteCatalog build(Map<String, String> sitesByKey)
+	{
+		HashMap<String, String> copy = new HashMap<String, String>(sitesByKey);
+		String[] sites = copy.values().toArray(new String[copy.size()]);
+		Arrays.sort(sites, SITE_ORDER);
+		return new SiteCatalog(sites, copy);
+	}
+
+	/**
+	 * Get the sorted list of site names.  This is a copy, so the caller is
+	 * free to do what it likes with it.
+	 * @return The site names, sorted for display
+	 */
+	public String[] getSites()
+	{
+		String[] copy = new String[sites.length];
+		System.arraycopy(sites, 0, copy, 0, sites.length);
+		return copy;
+	}
+
+	/**
+	 * Get the number of sites in the catalog
+	 * @return The number of sites
+	 */
+	public int size() { return sites.length; }
+
+	/**
+	 * Check to see if the catalog contains the specified site
+	 * @param site The name of the site to look for
+	 * @return True if the site is in the catalog, false otherwise
+	 */
+	public boolean containsSite(String site)
+	{
+		if (site == null) return false;
+		return Arrays.binarySearch(sites, site, SITE_ORDER) >= 0;
+	}
+
+	/**
+	 * Get a catalog that includes the specified site.  If the site is already
+	 * in this catalog, this catalog is returned as is.
+	 * @param key The site key of the site
+	 * @param site The name of the site
+	 * @return A SiteCatalog including the site
+	 */
+	public SiteCatalog withSite(String key, String site)
+	{
+		// Note that this copies the whole catalog, so it's O(n) per call.
+		// For more than one site, use withSites() instead.
+		String oldSite = sitesByKey.get(key);
+		if (site.equals(oldSite)) return this;
+		// Since the site key is generated from the site name, a key should
+		// never change names.  If it somehow did, take the old name out
+		// first so it doesn't linger in the list:
+		String[] base = oldSite == null ? sites : remove(sites, oldSite);
+		String[] newSites = base;
+		int index = Arrays.binarySearch(base, site, SITE_ORDER);
+		if (index < 0)
+		{
+			// Make room for the new site where the search says it belongs:
+			index = -(index + 1);
+			newSites = new String[base.length + 1];
+			System.arraycopy(base, 0, newSites, 0, index);
+			newSites[index] = site;
+			System.arraycopy(base, index, newSites, index + 1, base.length - index);
+		}
+		HashMap<String, String> newSitesByKey = new HashMap<String, String>(sitesByKey);
+		newSitesByKey.put(key, site);
+		return new SiteCatalog(newSites, newSitesByKey);
+	}
+
+	/**
+	 * Get a catalog that includes every one of the specified sites.  This
+	 * makes a single copy of the catalog for the whole batch, so adding m
+	 * sites to a catalog of n sites costs O(n + m log m), where calling
+	 * withSite() m times would cost O(m * (n + m)).  If every site is already
+	 * in this catalog, this catalog is returned as is.
+	 * @param keys The site keys of the sites
+	 * @param sites The names of the sites, in the same order as the keys
+	 * @param count The number of sites to add from the start of the arrays
+	 * @return A SiteCatalog including the sites
+	 */
+	public SiteCatalog withSites(String[] keys, String[] sites, int count)
+	{
+		HashMap<String, String> newSitesByKey = null;
+		ArrayList<String> added = new ArrayList<String>(count);
+		boolean renamed = false;
+		for (int i = 0; i < count; i++)
+		{
+			String oldSite = sitesByKey.get(keys[i]);
+			if (sites[i].equals(oldSite)) continue;
+			if (newSitesByKey == null)
+				newSitesByKey = new HashMap<String, String>(sitesByKey);
+			newSitesByKey.put(keys[i], sites[i]);
+			// See withSite() about keys changing names.  It should never
+			// happen, so if it does, we'll just build the list over from the
+			// map rather than trying to patch it:
+			if (oldSite != null) renamed = true;
+			else added.add(sites[i]);
+		}
+		if (newSitesByKey == null) return this;
+		if (renamed) return build(newSitesByKey);
+		// Sort the new sites, then merge them into the old list in one pass.
+		// A name that's already in the list (or in the batch twice) only
+		// goes in once:
+		String[] newOnes = added.toArray(new String[added.size()]);
+		Arrays.sort(newOnes, SITE_ORDER);
+		String[] newSites = new String[this.sites.length + newOnes.length];
+		int i = 0, j = 0, k = 0;
+		while (i < this.sites.length || j < newOnes.length)
+		{
+			String next;
+			if (j >= newOnes.length) next = this.sites[i++];
+			else if (i >= this.sites.length) next = newOnes[j++];
+			else
+			{
+				int order = SITE_ORDER.compare(this.sites[i], newOnes[j]);
+				if (order <= 0) next = this.sites[i++];
+				else next = newOnes[j++];
+			}
+			if (k == 0 || !next.equals(newSites[k - 1])) newSites[k++] = next;
+		}
+		if (k < newSites.length)
+		{
+			String[] trimmed = new String[k];
+			System.arraycopy(newSites, 0, trimmed, 0, k);
+			newSites = trimmed;
+		}
+		return new SiteCatalog(newSites, newSitesByKey);
+	}
+
+	/**
+	 * Get a catalog that does not include the site with the specified key.
+	 * If the site isn't in this catalog, this catalog is returned as is.
+	 * @param key The site key of the site to remove
+	 * @return A SiteCatalog without the site
+	 */
+	public SiteCatalog withoutSite(String key)
+	{
+		String site = sitesByKey.get(key);
+		if (site == null) return this;
+		HashMap<String, String> newSitesByKey = new HashMap<String, String>(sitesByKey);
+		newSitesByKey.remove(key);
+		return new SiteCatalog(remove(sites, site), newSitesByKey);
+	}
+
+	/* Private Methods **********************************************************/
+
+	/**
+	 * Make a copy of a sorted site array with the specified site removed
+	 * @param sites The sorted array of sites
+	 * @param site The site to remove
+	 * @return A new array without the site, or the original array if the site
+	 * wasn't in it
+	 */
+	private static String[] remove(String[] sites, String site)
+	{
+		int index = Arrays.binarySearch(sites, site, SITE_ORDER);
+		if (index < 0) return sites;
+		String[] newSites = new String[sites.length - 1];
+		System.arraycopy(sites, 0, newSites, 0, index);
+		System.arraycopy(sites, index + 1, newSites, index, sites.length - index - 1);
+		return newSites;
+	}
+
+}
@@ -0,0 +1,252 @@
+/* SiteIndex.java
+ *
+ * PROGRAMMER:    Jeffrey T. Darlington
+ * DATE:          October 17, 2026
+ * PROJECT:       Cryptnos (Android)
+ * ANDROID V.:	  1.1
+ * REQUIRES:      PBECipher
+ * REQUIRED BY:   ParamsDbAdapter
+ *
+ * This class encodes and decodes the site index, an encrypted copy of every
+ * site key and site name in the database that is stored alongside the records
+ * themselves.  Every record is encrypted under its own key, derived from its
+ * site key, so the only way to find out what sites are in the database is to
+ * derive a key and decrypt a record for every single row.  That's what the
+ * site list builder has to do every time Cryptnos starts (or whenever Android
+ * asks us to free up memory), and with a lot of sites it can take a while.
+ *
+ * The index gives us a shortcut.  The whole list of site keys and names is
+ * stored as a single blob, encrypted under one key derived from the device's
+ * parameter salt, so reading it takes one key derivation and one decryption
+ * no matter how many sites there are.  The index is only a copy, however; the
+ * records themselves are always the real data.  ParamsDbAdapter stores a row
+ * count and a checksum of the site keys with the index, and if those don't
+ * match the records, or the index can't be decrypted, the index is ignored
+ * and the site list is built the old way.
+ *
+ * The checksum is a CRC-32 of the UTF-8 bytes of the site keys in sorted
+ * order.  It's not meant to be cryptographically strong; it's just meant to
+ * catch an index that's out of step with the records.  An index written with
+ * the old checksum won't match if any key isn't plain ASCII, and simply gets
+ * rebuilt.
+ *
+ * Re-encrypting the whole index every time a single site is saved or deleted
+ * would make every edit cost as much as the whole list, so edits are recorded
+ * separately instead.  encodeChanges() encrypts just the sites that changed,
+ * which ParamsDbAdapter stores alongside the index, and applyChanges() plays
+ * them back on top of the decoded index when it's loaded.  Every so often the
+ * changes are folded back into a fresh copy of the whole index.
+ *
+ * This program is Copyright 2026, Jeffrey T. Darlington.
+ * E-mail:  android_support@cryptnos.com
+ * Web:     http://www.cryptnos.com/
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.util.encoders.Base64;
+
+/**
+ * Encodes and decodes the encrypted site index stored in the database.
+ * @author Jeffrey T. Darlington
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class SiteIndex {
+
+	/* Private Constants ********************************************************/
+
+	/** The "password" the index key is derived from.  The real secret is the
+	 *  device's parameter salt, just like it is for the records themselves;
+	 *  this just makes sure the index key is different from every record
+	 *  key.  Normal site keys are Base64 hashes, so they can never match
+	 *  this.  A fallback key is the site name itself (see
+	 *  SiteParameters.generateKeyFromSite()), so a site with this exact
+	 *  name whose key couldn't be hashed would end up sharing the index
+	 *  key.  That would only mean one version 1 record and the index are
+	 *  encrypted with the same key, both of which are still protected by
+	 *  the salt, so it isn't worth a more elaborate scheme. */
+	private static final String INDEX_PASSWORD = "Cryptnos Site Index";
+	/** The version of the index format.  If the format ever changes, bump
+	 *  this and old indexes will simply be ignored and rebuilt. */
+	private static final int FORMAT_VERSION = 1;
+
+	/* Private Members **********************************************************/
+
+	/** The salt our cached index key was derived from */
+	private static byte[] keySalt = null;
+	/** Our cached index key */
+	private static CipherParameters key = null;
+
+	/**
+	 * Don't instantiate this class; everything here is static.
+	 */
+	private SiteIndex() {}
+
+	/* Public Static Methods **************************************************/
+
+	/**
+	 * Encrypt a site index
+	 * @param sitesByKey A map of every site key in the database to its site
+	 * name
+	 * @return The encrypted index as Base64 text, ready to store
+	 * @throws Exception Thrown if the index could not be encrypted
+	 */
+	public static String encode(Map<String, String> sitesByKey) throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(sitesByKey.size());
+		for (Map.Entry<String, String> entry : sitesByKey.entrySet())
+		{
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+		out.close();
+		return new String(Base64.encode(PBECipher.process(getKey(), true,
+			bytes.toByteArray())), "US-ASCII");
+	}
+
+	/**
+	 * Decrypt a site index
+	 * @param data The encrypted index as returned by encode()
+	 * @return A map of every site key in the index to its site name, sorted
+	 * by site key
+	 * @throws Exception Thrown if the index could not be decrypted or is not
+	 * in a format we understand
+	 */
+	public static TreeMap<String, String> decode(String data) throws Exception
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+			PBECipher.process(getKey(), false,
+			Base64.decode(data.getBytes("US-ASCII")))));
+		if (in.readInt() != FORMAT_VERSION)
+			throw new Exception("Unknown site index format");
+		int count = in.readInt();
+		TreeMap<String, String> sitesByKey = new TreeMap<String, String>();
+		for (int i = 0; i < count; i++)
+			sitesByKey.put(in.readUTF(), in.readUTF());
+		return sitesByKey;
+	}
+
+	/**
+	 * Encrypt a set of changes to the site index
+	 * @param changes A map of the site keys that have changed to their new
+	 * site names.  Deleted sites should map to null.
+	 * @return The encrypted changes as Base64 text, ready to store
+	 * @throws Exception Thrown if the changes could not be encrypted
+	 */
+	public static String encodeChanges(Map<String, String> changes)
+		throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(changes.size());
+		for (Map.Entry<String, String> change : changes.entrySet())
+		{
+			out.writeUTF(change.getKey());
+			out.writeBoolean(change.getValue() != null);
+			if (change.getValue() != null) out.writeUTF(change.getValue());
+		}
+		out.close();
+		return new String(Base64.encode(PBECipher.process(getKey(), true,
+			bytes.toByteArray())), "US-ASCII");
+	}
+
+	/**
+	 * Decrypt a set of changes and apply them to a decoded site index
+	 * @param data The encrypted changes as returned by encodeChanges()
+	 * @param sitesByKey The site index to apply the changes to, as returned
+	 * by decode().  This is modified in place.
+	 * @throws Exception Thrown if the changes could not be decrypted or are
+	 * not in a format we understand
+	 */
+	public static void applyChanges(String data, Map<String, String> sitesByKey)
+		throws Exception
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+			PBECipher.process(getKey(), false,
+			Base64.decode(data.getBytes("US-ASCII")))));
+		if (in.readInt() != FORMAT_VERSION)
+			throw new Exception("Unknown site index format");
+		int count = in.readInt();
+		for (int i = 0; i < count; i++)
+		{
+			String key = in.readUTF();
+			if (in.readBoolean()) sitesByKey.put(key, in.readUTF());
+			else sitesByKey.remove(key);
+		}
+	}
+
+	/**
+	 * Calculate the checksum of a set of site keys
+	 * @param keys An Iterator over the site keys, which must be in sorted
+	 * order
+	 * @return The checksum
+	 * @throws Exception Thrown if the checksum could not be calculated
+	 */
+	public static long checksum(Iterator<String> keys) throws Exception
+	{
+		// Normal site keys are plain ASCII Base64, but a fallback key is
+		// the site name itself and can contain anything.  Encoding those as
+		// ASCII would turn every other character into a '?', so two
+		// different keys could hash the same.  UTF-8 keeps every key
+		// distinct, and is exactly the same as ASCII for the Base64 keys.
+		// The keys are always sorted by Java, never by SQLite, so their
+		// order doesn't depend on the encoding either.
+		CRC32 crc = new CRC32();
+		while (keys.hasNext())
+		{
+			crc.update(keys.next().getBytes(
+				CryptnosApplication.TEXT_ENCODING_UTF8));
+			crc.update('\n');
+		}
+		return crc.getValue();
+	}
+
+	/* Private Static Methods *************************************************/
+
+	/**
+	 * Get the index key, deriving it if we haven't already done so for the
+	 * current parameter salt
+	 * @return The index key
+	 * @throws Exception Thrown if the key could not be derived
+	 */
+	private static synchronized CipherParameters getKey() throws Exception
+	{
+		// The parameter salt is replaced with a new array whenever it's
+		// refreshed, so if it's not the same array we derived our key from,
+		// we need to derive a new one:
+		if (key == null || keySalt != CryptnosApplication.PARAMETER_SALT)
+		{
+			keySalt = CryptnosApplication.PARAMETER_SALT;
+			key = PBECipher.deriveParameters(INDEX_PASSWORD, keySalt,
+				CryptnosApplication.KEY_ITERATION_COUNT);
+		}
+		return key;
+	}
+
+}
@@ -40,6 +40,13 @@
  * UPDATES FOR 1.3.1:  Added setTextFilterEnabled() to ListView to enable filtering
  * of the site list based on the user typing.
  * 
+ * UPDATES FOR 1.3.5:  Deleting sites no longer marks the site list as dirty.
+ * The application now updates the list itself whenever a site is deleted, so
+ * we can simply ask for the updated list without waiting for it to be rebuilt.
+ * The QR code export now reads the record in whatever record format version
+ * the database says it's stored in, as raw bytes.  The cached site parameter
+ * encryption keys are cleared whenever we lose focus.
+ * 
  * "QR code" is a registered trademark of Denso Wave Incorporated.
  * 
  * This program is Copyright 2011, Jeffrey T. Darlington.
@@ -93,7 +100,7 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
  * will also bring up a context menu that will allow any of the subsequent
  * actions to be selected.
  * @author Jeffrey T. Darlington
- * @version 1.3.1
+ * @version 1.3.5
  * @since 1.0
  */public class SiteListActivity extends ListActivity implements
  		SiteListListener {
@@ -180,6 +187,17 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
         theApp.requestSiteList(this, this);
     }
 
+    @Override
+    protected void onPause()
+    {
+    	// Throw away any cached encryption keys whenever we lose focus,
+    	// including when the user picks a site and moves on to the next
+    	// step.  That step will simply derive the key it needs again.  See
+    	// GenerateExistingActivity.onPause() for more details.
+    	SiteParameters.clearKeyCache();
+    	super.onPause();
+    }
+
     // Commented out the onStop() declaration.  Odds are we don't really need
     // it, and there's the side effect that small configuration changes like
     // rotating the screen or sliding out a physical keyboard call this too,
@@ -265,12 +283,10 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 		                // Android to rebuild it the next time it's needed, making
 		                // sure the text matches what the user tapped.
 						theActivity.removeDialog(DIALOG_CONFIRM_DELETE);
-						// Now we need to refresh the list.  I wish there was a
-						// better way to do this, but we'll have to rebuild the
-						// list completely and re-associate it with the UI.  To
-						// do this, ask the app to mark the list as "dirty" and
-						// in need of refreshing, then request the list again.
-						theApp.setSiteListDirty();
+						// Now we need to refresh the list.  The app has already
+						// taken the deleted site out of its copy of the list,
+						// so all we need to do is request the list again and
+						// re-associate it with the UI.
 						theApp.requestSiteList(theActivity,
 								(SiteListListener)theActivity);
 		           }
@@ -321,9 +337,6 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
   		        	   // use dismissDialog(), since this dialog doesn't have
   		        	   // to be rebuilt every time.
   		        	   theActivity.dismissDialog(DIALOG_CONFIRM_DELETE_ALL);
-  		        	   // Set the app's site list reference to dirty, so it
-  		        	   // will be forced to refresh:
-  		        	   theApp.setSiteListDirty();
   		        	   // At this point, there's no reason keeping this
   		        	   // activity open.  There will be nothing in here to
   		        	   // work with.  So close the activity, which should
@@ -596,7 +609,8 @@ import android.widget.AdapterView.AdapterContextMenuInfo;
 				if (c != null & c.getCount() == 1) {
 					// Generate a new site parameters object:
 					SiteParameters params =
-    					new SiteParameters(theApp, c.getString(1), c.getString(2));
+    					new SiteParameters(theApp, c.getBlob(1), c.getBlob(2),
+    						c.getInt(3));
 					// Close the cursor for good measure:
 					c.close();
 					// Get the app's QR code handler and make sure we can work with
@@ -75,6 +75,36 @@
  * for conversions, rather than relying on hard-coded constants or the system
  * default.  Anything dealing with import/export, however, should force UTF-8.
  * 
+ * UPDATES FOR 1.3.5:  The hash iteration loop now alternates between two
+ * preallocated buffers instead of allocating a new byte array for every
+ * iteration.  Progress updates now go through a ProgressReporter, which samples
+ * the progress rather than posting a Message for every iteration.  Hash engine
+ * selection and the iteration loop itself have moved to the new HashProvider
+ * registry.  The character type restrictions now use precomputed lookup tables
+ * rather than compiling regular expressions for every generated password.
+ * The keys derived for encrypting and decrypting parameter data are now kept
+ * in a small least-recently-used cache, so opening the same site several times
+ * in a row only pays for the key derivation once.  Bulk operations that decrypt
+ * the whole database keep their keys out of the cache.  The cache is cleared
+ * whenever memory runs low, the salt changes, or an activity loses focus.  The
+ * hash engines now come from the per-thread
+ * CipherPool rather than being looked up from the security providers every
+ * time.  Parameter data is now encrypted and decrypted by the in-tree
+ * PBECipher rather than a JCA Cipher; the encrypted data is exactly the same.
+ * Added version 2 of the encrypted record format.  Version 1 records are
+ * encrypted under a key derived from their own site key, so reading every
+ * record meant running the key derivation once per record.  Version 2 records
+ * are all encrypted under a single "vault" key, derived once per session from
+ * the parameter salt, with a random initialization vector stored at the front
+ * of each record.  exportEncryptedString() now always writes version 2; the
+ * new four-argument constructor reads either version.  The database now stores
+ * site keys and encrypted records as raw binary rather than Base64 text, so
+ * added exportEncryptedBytes(), keyToBytes(), and keyFromBytes(), and the
+ * four-argument constructor now takes the raw bytes straight from the
+ * database.  Every raw site key starts with a one-byte marker saying whether
+ * the rest is a SHA-512 digest or the UTF-8 text of a fallback key, so the
+ * two can never be mistaken for each other.
+ * 
  * This program is Copyright 2010, Jeffrey T. Darlington.
  * E-mail:  android_support@cryptnos.com
  * Web:     http://www.cryptnos.com/
@@ -97,19 +127,12 @@ import java.io.ByteArrayOutputStream;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.MessageDigest;
-import java.security.spec.AlgorithmParameterSpec;
-import java.util.regex.Pattern;
-
-import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.PBEParameterSpec;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import org.bouncycastle.crypto.Digest;
-import org.bouncycastle.crypto.digests.RIPEMD160Digest;
-import org.bouncycastle.crypto.digests.TigerDigest;
-import org.bouncycastle.crypto.digests.WhirlpoolDigest;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.util.encoders.Base64;
 
 import android.os.Bundle;
@@ -119,11 +142,26 @@ import android.os.Message;
 /**
  * Encapsulates an atomic set of site parameters for Cryptnos.
  * @author Jeffrey T. Darlington
- * @version 1.0
+ * @version 1.3.5
  * @since 1.0
  */
 public class SiteParameters {
 
+	/** The original encrypted record format, where each record is encrypted
+	 *  under a key derived from its own site key */
+	public static final int RECORD_FORMAT_V1 = 1;
+	/** The second encrypted record format, where every record is encrypted
+	 *  under the vault key with its own random initialization vector */
+	public static final int RECORD_FORMAT_V2 = 2;
+	/** The encrypted record format written by exportEncryptedString() */
+	public static final int RECORD_FORMAT_CURRENT = RECORD_FORMAT_V2;
+	/** The length in bytes of a site key digest, which is a SHA-512 hash */
+	public static final int SITE_KEY_LENGTH = 64;
+	/** The marker at the front of a raw site key holding a SHA-512 digest */
+	private static final byte RAW_KEY_DIGEST = 1;
+	/** The marker at the front of a raw site key holding UTF-8 text */
+	private static final byte RAW_KEY_TEXT = 2;
+
 	/** The site name or token. */
 	private String site = null;
 	/** The cryptographic hash to use to generate the passphrase. */
@@ -142,6 +180,70 @@ public class SiteParameters {
 	 *  certain constants for encryption. */
 	private CryptnosApplication theApp = null;
 	
+	/** The character type lookup tables used to filter generated passwords,
+	 *  indexed by character type.  Each table maps a Base64-encoded byte to
+	 *  the character that should replace it, or zero if it should be removed.
+	 *  See filterCharacters() for details. */
+	private static final char[][] CHAR_FILTERS = buildCharFilters();
+	
+	/** The maximum number of derived keys to keep in the key cache.  The
+	 *  keys themselves are tiny, so this is more about limiting how many
+	 *  keys are sitting around in memory at once than about the memory they
+	 *  use.  Only the handful of sites the user is working with one at a
+	 *  time ever make it into the cache; the bulk operations that walk the
+	 *  whole database (building the site list, exporting, and upgrading old
+	 *  records) never add to it, so they can't push those sites out.  The
+	 *  activities also empty it whenever they lose focus, so it never gets
+	 *  anywhere near this size in practice. */
+	private static final int KEY_CACHE_SIZE = 32;
+	
+	/** A least-recently-used cache of the keys derived for encrypting and
+	 *  decrypting parameter data, indexed by site key.  Deriving one of these
+	 *  keys is the most expensive part of reading or writing a record, and
+	 *  the same site is often decrypted more than once while the user is
+	 *  working with it.  Once the cache is full, the key that was used the
+	 *  longest time ago is thrown out to make room.  Every key in the cache
+	 *  was derived from keyCacheSalt; if the parameter salt changes, the
+	 *  whole cache is thrown out.  Note that the cache can be touched by
+	 *  several threads at once, so all access to it (and to keyCacheSalt and
+	 *  keyCacheGeneration) must synchronize on it.  Call clearKeyCache() to
+	 *  empty it. */
+	private static final LinkedHashMap<String, CipherParameters> keyCache =
+		new LinkedHashMap<String, CipherParameters>(KEY_CACHE_SIZE * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CipherParameters> eldest) {
+				return size() > KEY_CACHE_SIZE;
+			}
+		};
+	
+	/** The parameter salt every key in the key cache was derived from */
+	private static byte[] keyCacheSalt = null;
+	
+	/** Incremented every time the key cache is emptied.  A key that took a
+	 *  while to derive only goes into the cache if this hasn't changed since
+	 *  we started deriving it, so a key derived from an old salt (or one we
+	 *  were asked to forget) can never sneak back in after a clear. */
+	private static int keyCacheGeneration = 0;
+	
+	/** The "password" the vault key is derived from.  Like everything else
+	 *  here, the real secret is the parameter salt; this just keeps the vault
+	 *  key different from any key derived for a version 1 record or the
+	 *  site index. */
+	private static final String VAULT_PASSWORD = "Cryptnos Vault";
+	
+	/** The vault key used to encrypt and decrypt version 2 records, or null
+	 *  if it hasn't been derived yet.  Only touch this through getVaultKey()
+	 *  and clearKeyCache(). */
+	private static CipherParameters vaultKey = null;
+	
+	/** The parameter salt the vault key was derived from */
+	private static byte[] vaultKeySalt = null;
+	
+	/** The source of the random initialization vectors for version 2
+	 *  records.  SecureRandom is safe to share between threads. */
+	private static final SecureRandom ivSource = new SecureRandom();
+	
 	/**
 	 * Create a new, empty SiteParameters.  This is primarily intended for
 	 * creating SiteParameters from parsing XML.
@@ -190,7 +292,8 @@ public class SiteParameters {
 	
 	/**
 	 * Create a new SiteParameters object from encrypted data, presumably
-	 * loaded from a database.
+	 * loaded from a database.  The data must be in the original version 1
+	 * record format.
 	 * @param theApp A reference to the full Cryptnos application, used
 	 * primarily for notifications
 	 * @param siteKey An obscured site "token" that uniquely identifies the
@@ -202,16 +305,72 @@ public class SiteParameters {
 	 */
 	public SiteParameters(CryptnosApplication theApp, String siteKey,
 			String encryptedData) throws Exception
+	{
+		// If the data isn't valid Base64, pass along a null and let the
+		// constructor below fail the way it does for any other bad data:
+		this(theApp, keyToBytes(siteKey), decodeBase64(encryptedData, theApp),
+			RECORD_FORMAT_V1);
+	}
+	
+	/**
+	 * Create a new SiteParameters object from encrypted data in the specified
+	 * record format, presumably loaded from a database.
+	 * @param theApp A reference to the full Cryptnos application, used
+	 * primarily for notifications
+	 * @param siteKey An obscured site "token" that uniquely identifies the
+	 * site parameters in the database, as returned by keyToBytes().
+	 * @param encryptedData The raw encrypted data containing the bulk of the
+	 * parameter data.
+	 * @param format The record format the data is in, either
+	 * RECORD_FORMAT_V1 or RECORD_FORMAT_V2
+	 * @throws Exception Thrown when any error occurs reconstituting the
+	 * encrypted data.
+	 */
+	public SiteParameters(CryptnosApplication theApp, byte[] siteKey,
+			byte[] encryptedData, int format) throws Exception
+	{
+		this(theApp, siteKey, encryptedData, format, true);
+	}
+	
+	/**
+	 * Create a new SiteParameters object from encrypted data in the specified
+	 * record format, presumably loaded from a database, optionally keeping
+	 * the derived key out of the key cache.  Bulk operations that decrypt
+	 * every record in the database should pass false for useKeyCache, since
+	 * they'll never need most of those keys again and would only push out
+	 * the ones the user is actually working with.
+	 * @param theApp A reference to the full Cryptnos application, used
+	 * primarily for notifications
+	 * @param siteKey An obscured site "token" that uniquely identifies the
+	 * site parameters in the database, as returned by keyToBytes().
+	 * @param encryptedData The raw encrypted data containing the bulk of the
+	 * parameter data.
+	 * @param format The record format the data is in, either
+	 * RECORD_FORMAT_V1 or RECORD_FORMAT_V2
+	 * @param useKeyCache True to add a newly derived key to the key cache,
+	 * false to leave the cache alone
+	 * @throws Exception Thrown when any error occurs reconstituting the
+	 * encrypted data.
+	 */
+	public SiteParameters(CryptnosApplication theApp, byte[] siteKey,
+			byte[] encryptedData, int format, boolean useKeyCache)
+			throws Exception
 	{
 		// Asbestos underpants:
 		try
 		{
 			this.theApp = theApp;
-			// Build our cipher and put it in decrypt mode:
-			Cipher cipher = createCipher(siteKey, Cipher.DECRYPT_MODE);
-			// Unencrypt the data:
-			String combinedParams  =
-				new String(cipher.doFinal(Base64.decode(encryptedData.getBytes(theApp.getTextEncoding()))));
+			// Unencrypt the data.  Version 1 records need the site key to
+			// derive their key, while version 2 records all share the vault
+			// key.  Note that the data comes straight from the database, so
+			// there's no longer any Base64 to decode first.
+			byte[] data = null;
+			if (format == RECORD_FORMAT_V2) data = vaultCrypt(false, encryptedData);
+			else if (format == RECORD_FORMAT_V1)
+				data = crypt(keyFromBytes(siteKey), false, encryptedData,
+					useKeyCache);
+			else throw new Exception();
+			String combinedParams = new String(data);
 			// Split it apart based on the pipe character:
 			String[] bits = combinedParams.split("\\|");
 			// This should only be valid if we get five inputs:
@@ -229,6 +388,13 @@ public class SiteParameters {
 				hash = URLDecoder.decode(bits[4], CryptnosApplication.TEXT_ENCODING_UTF8);
 				// Generate the site key:
 				key = generateKeyFromSite(site, theApp);
+				// A version 1 record could only be decrypted with its own
+				// site key, but the vault key decrypts any version 2 record.
+				// Make sure this record actually belongs to the site key it
+				// was stored under, so one record can't be passed off as
+				// another:
+				if (format == RECORD_FORMAT_V2 && !key.equals(keyFromBytes(siteKey)))
+					throw new Exception();
 			}
 			// If we didn't get five parts, something's wrong.  Throw an
 			// exception here.  We won't specify anything in the message,
@@ -383,18 +549,31 @@ public class SiteParameters {
 	
 	/**
 	 * Export the current state of the site parameters as a Base64-encoded
-	 * encrypted string, suitable for storing in a database.  Use the second
-	 * constructor to reconstitute this string into its original form.
+	 * encrypted string.  This is simply the Base64-encoded form of
+	 * exportEncryptedBytes(), so the string is always in the
+	 * RECORD_FORMAT_CURRENT record format.
 	 * @return A Base64-encoded encrypted string.
 	 * @throws Exception Throw if an error occurs while encrypting the data.
 	 */
 	public String exportEncryptedString() throws Exception
+	{
+		return base64String(exportEncryptedBytes());
+	}
+	
+	/**
+	 * Export the current state of the site parameters as raw encrypted data,
+	 * suitable for storing in a database.  The data is always in the
+	 * RECORD_FORMAT_CURRENT record format.  Use the four argument constructor
+	 * to reconstitute this data into its original form.
+	 * @return The encrypted data.
+	 * @throws Exception Throw if an error occurs while encrypting the data.
+	 */
+	public byte[] exportEncryptedBytes() throws Exception
 	{
 		try
 		{
 			String combinedParams = exportUnencryptedString(); 
-			Cipher cipher = createCipher(key, Cipher.ENCRYPT_MODE);
-			return base64String(cipher.doFinal(combinedParams.getBytes(theApp.getTextEncoding())));
+			return vaultCrypt(true, combinedParams.getBytes(theApp.getTextEncoding()));
 		}
 		catch (Exception e)
 		{
@@ -439,131 +618,45 @@ public class SiteParameters {
 			// iteration count must be one or greater:
 			if (charLimit >= 0 && iterations > 0)
 			{
+				// If someone wants to hear about our progress, create a
+				// progress reporter to pass the word along.  Posting a
+				// message for every single iteration floods the UI thread,
+				// so the reporter samples the progress instead.  If nobody
+				// is listening, leave the reporter null and the hash loop
+				// will skip reporting entirely.
+				ProgressReporter progress = null;
+				if (handler != null)
+					progress = new ProgressReporter(handler, "iteration", iterations);
 				// Concatenate the site and passphrase values, then
 				// convert the string to a byte array for hashing:
 				byte[] result = site.concat(secret).getBytes(theApp.getTextEncoding());
-				// We will use one of two hashing engines.  Internally,
-				// Java supports MD5, SHA-1, and a trio of SHA-2 methods.
-				// We'll assume that since these are built-in, they must
-				// be optimized compared to external definitions.  If
-				// the selected hash is one of these, we'll use the
-				// internal engine.
-				MessageDigest internalHasher = null;
-				Digest bcHasher = null;
-				if (hash.compareTo("MD5") == 0 ||
-					hash.compareTo("SHA-1") == 0 ||
-					hash.compareTo("SHA-256") == 0 ||
-					hash.compareTo("SHA-384") == 0 ||
-					hash.compareTo("SHA-512") == 0) {
-					internalHasher = MessageDigest.getInstance(hash);
-				}
-				// If it is any other engine, we'll fall back to the
-				// Bouncy Castle implementations.  We may add more later,
-				// but for now we'll only use the same ones supported by
-				// the .NET version of Cryptnos.  There, we actually
-				// re-implemented their code to fit with the .NET hashing
-				// class structure; here, we'll using Bouncy Castle out
-				// of the box, so it's trivial to implement them all.
-				else if (hash.compareTo("RIPEMD-160") == 0) {
-					bcHasher = new RIPEMD160Digest();
-				}
-				else if (hash.compareTo("Tiger") == 0) {
-					bcHasher = new TigerDigest();
-				}
-				else if (hash.compareTo("Whirlpool") == 0) {
-					bcHasher = new WhirlpoolDigest();
-				}
-				// If we're using the internal hashing engine, we've
-				// got things easy.  The most complex part is feeding the
-				// hash back into the engine for multiple iterations.
-				if (internalHasher != null)
-				{
-					for (int i = 0; i < iterations; i++) {
-						result = internalHasher.digest(result);
-						if (handler != null) {
-				        	msg = handler.obtainMessage();
-			                b = new Bundle();
-			                b.putInt("iteration", i);
-			                b.putString("password", null);
-			                msg.setData(b);
-			                handler.sendMessage(msg);
-
-						}
-					}
-				}
-				// If we're using the Bouncy Castle stuff, we'll need to
-				// do a bit more work.  Declare the result, feed it to
-				// the engine, and get back the hash.  Note that we redeclare
-				// the result byte array after the update so each iteration
-				// puts the result hash into the array.  Also note that we
-				// make sure to reset the engine after each iteration, which
-				// apparently the built-in engines do automagically.
-				else if (bcHasher != null)
-				{
-					for (int i = 0; i < iterations; i++)
-					{
-						bcHasher.update(result, 0, result.length);
-						result = new byte[bcHasher.getDigestSize()];
-						bcHasher.doFinal(result, 0);
-						bcHasher.reset();
-						if (handler != null) {
-				        	msg = handler.obtainMessage();
-			                b = new Bundle();
-			                b.putInt("iteration", i);
-			                b.putString("password", null);
-			                msg.setData(b);
-			                handler.sendMessage(msg);
-
-						}
-					}
-				}
+				// Look up the hash engine for the selected algorithm.  The
+				// HashProvider registry knows about both the internal Java
+				// engines and the Bouncy Castle ones, and keeps a reusable
+				// engine around for each thread so we don't have to build a
+				// new one every time.  It also owns the iteration "kernel"
+				// that feeds the hash back into the engine, alternating
+				// between two preallocated buffers rather than allocating
+				// a new byte array for every iteration.  Note that if the
+				// hash isn't one we recognize, the result is left untouched,
+				// just as it always has been.
+				HashProvider provider = HashProvider.forName(hash);
+				if (provider != null)
+					result = provider.iterate(result, iterations, progress);
 				// By now, we *should* have the intermediate hash in hand.
 				// We'll double check with a null check here, just in case.
 				if (result != null)
 				{
-					// Get the raw hash as a Base64 string:
-					String b64hash = base64String(result);
-					// Now that we've got the hash string, we need to apply
-					// our modifications.  First, the character type
-					// restriction.  Based on the user's choice in the
-					// drop-down, run the hash through some regular
-					// expressions to chop out unwanted characters:
-					Pattern p = null;
-					switch (charTypes)
-					{
-						// Alphanumerics, change others to underscores
-						case 1:
-							p = Pattern.compile("\\W");
-							b64hash =
-								p.matcher(b64hash).replaceAll("_");
-							break;
-						// Alphanumerics only
-						case 2:
-							p = Pattern.compile("[^a-zA-Z0-9]");
-							b64hash =
-								p.matcher(b64hash).replaceAll("");
-							break;
-						// Alphabetic characters only
-						case 3:
-							p = Pattern.compile("[^a-zA-Z]");
-							b64hash =
-								p.matcher(b64hash).replaceAll("");
-							break;
-						// Numbers only
-						case 4:
-							p = Pattern.compile("\\D");
-							b64hash =
-								p.matcher(b64hash).replaceAll("");
-							break;
-						// By default, use all generated characters
-						default:
-							break;
-					}
-					// Next, apply the character limit.  If it's any-
-					// thing greater than zero, get only the first so
-					// many characters:
-					if (charLimit > 0 && b64hash.length() > charLimit)
-						b64hash = b64hash.substring(0, charLimit);
+					// Get the raw hash Base64-encoded, then apply our
+					// modifications:  the character type restriction and
+					// the character limit.  Originally this compiled a new
+					// regular expression every time and ran it over a
+					// String, then chopped the result down to size.  Now
+					// we filter the encoded bytes through a precomputed
+					// lookup table and stop as soon as we have enough
+					// characters.  The output is exactly the same.
+					String b64hash = filterCharacters(Base64.encode(result),
+						charTypes, charLimit);
 					// Now we have our final value.  Display it back
 					// to the user and get ready to save it to the
 					// database.
@@ -606,6 +699,67 @@ public class SiteParameters {
 		}
 	}
 
+	/**
+	 * Apply the character type restriction and character limit to a Base64-
+	 * encoded hash.  Each character type has a 256-entry lookup table that
+	 * maps each encoded byte to the character it should become, or to zero if
+	 * it should be removed.  These tables reproduce the regular expressions
+	 * used by previous versions exactly:
+	 * 		1:  \W replaced with underscores
+	 * 		2:  [^a-zA-Z0-9] removed
+	 * 		3:  [^a-zA-Z] removed
+	 * 		4:  \D removed
+	 * Any other character type uses all generated characters.
+	 * @param encoded The Base64-encoded hash as raw bytes
+	 * @param charTypes The character type restriction
+	 * @param charLimit The maximum number of characters to return, or zero
+	 * for no limit
+	 * @return The filtered password string
+	 */
+	private static String filterCharacters(byte[] encoded, int charTypes,
+		int charLimit)
+	{
+		char[] filter = (charTypes > 0 && charTypes < CHAR_FILTERS.length) ?
+			CHAR_FILTERS[charTypes] : CHAR_FILTERS[0];
+		int limit = (charLimit > 0 && charLimit < encoded.length) ?
+			charLimit : encoded.length;
+		char[] password = new char[limit];
+		int count = 0;
+		for (int i = 0; i < encoded.length && count < limit; i++)
+		{
+			char c = filter[encoded[i] & 0xff];
+			if (c != 0) password[count++] = c;
+		}
+		return new String(password, 0, count);
+	}
+	
+	/**
+	 * Build the character type lookup tables used by filterCharacters()
+	 * @return An array of 256-entry lookup tables, indexed by character type
+	 */
+	private static char[][] buildCharFilters()
+	{
+		char[][] filters = new char[5][256];
+		for (int i = 0; i < 256; i++)
+		{
+			char c = (char)i;
+			boolean upper = c >= 'A' && c <= 'Z';
+			boolean lower = c >= 'a' && c <= 'z';
+			boolean digit = c >= '0' && c <= '9';
+			// All generated characters:
+			filters[0][i] = c;
+			// Alphanumerics, change others to underscores:
+			filters[1][i] = (upper || lower || digit || c == '_') ? c : '_';
+			// Alphanumerics only:
+			filters[2][i] = (upper || lower || digit) ? c : 0;
+			// Alphabetic characters only:
+			filters[3][i] = (upper || lower) ? c : 0;
+			// Numbers only:
+			filters[4][i] = digit ? c : 0;
+		}
+		return filters;
+	}
+	
 	/**
 	 * Generate a unique, obscured "site key" from the specified site token
 	 * or name.  This key allows us to uniquely identify the site parameters
@@ -641,7 +795,9 @@ public class SiteParameters {
 				// property rather than its value.  In order to keep from
 				// breaking everything, we'll hard-code that string value here
 				// for now, but this really needs to be fixed someday.
-				MessageDigest hasher = MessageDigest.getInstance("SHA-512");
+				// The hash engine comes from the CipherPool, so we don't
+				// have to look it up all over again every time.
+				MessageDigest hasher = CipherPool.getHasher("SHA-512");
 				//return base64String(hasher.digest(theSite.concat(Settings.System.ANDROID_ID).getBytes()));
 				return base64String(hasher.digest(theSite.concat("android_id").getBytes(theApp.getTextEncoding())));
 			}
@@ -650,6 +806,97 @@ public class SiteParameters {
 		catch (Exception e) { return theSite; }
 	}
 	
+	/**
+	 * Convert a site key, as returned by generateKeyFromSite(), into the raw
+	 * bytes the database stores.  A normal key is simply the Base64-encoded
+	 * SHA-512 digest, so we store the digest itself.  However, if the key
+	 * couldn't be generated, generateKeyFromSite() falls back on returning
+	 * the site name as-is, so anything that isn't exactly a Base64-encoded
+	 * digest is stored as its UTF-8 bytes instead.  We can't tell the two
+	 * apart by length alone, since a fallback key could just happen to be
+	 * 64 bytes long, so the first byte is always a marker saying which one
+	 * follows.  That costs us one byte per record, but it means
+	 * keyFromBytes() always turns the bytes back into exactly the same key,
+	 * and we never have to turn away a record just because its key is odd.
+	 * @param key The site key
+	 * @return The raw site key, or null if the key was null
+	 */
+	public static byte[] keyToBytes(String key)
+	{
+		if (key == null) return null;
+		byte[] body = decodeBase64Exactly(key);
+		byte marker = RAW_KEY_DIGEST;
+		if (body == null || body.length != SITE_KEY_LENGTH)
+		{
+			try { body = key.getBytes(CryptnosApplication.TEXT_ENCODING_UTF8); }
+			catch (Exception e) { return null; }
+			marker = RAW_KEY_TEXT;
+		}
+		byte[] rawKey = new byte[body.length + 1];
+		rawKey[0] = marker;
+		System.arraycopy(body, 0, rawKey, 1, body.length);
+		return rawKey;
+	}
+	
+	/**
+	 * Convert a raw site key from the database back into the site key
+	 * returned by generateKeyFromSite().  This undoes keyToBytes().
+	 * @param rawKey The raw site key
+	 * @return The site key, or null if the raw key was null or wasn't
+	 * something keyToBytes() could have produced
+	 */
+	public static String keyFromBytes(byte[] rawKey)
+	{
+		if (rawKey == null || rawKey.length == 0) return null;
+		try
+		{
+			if (rawKey[0] == RAW_KEY_DIGEST &&
+				rawKey.length == SITE_KEY_LENGTH + 1)
+			{
+				byte[] digest = new byte[SITE_KEY_LENGTH];
+				System.arraycopy(rawKey, 1, digest, 0, SITE_KEY_LENGTH);
+				return base64String(digest);
+			}
+			if (rawKey[0] == RAW_KEY_TEXT)
+				return new String(rawKey, 1, rawKey.length - 1,
+					CryptnosApplication.TEXT_ENCODING_UTF8);
+		}
+		catch (Exception e) {}
+		return null;
+	}
+	
+	/**
+	 * Decode a Base64-encoded string, but only if it is exactly what
+	 * base64String() would have produced for the decoded bytes.  Bouncy
+	 * Castle's decoder doesn't complain about much, so this is how we make
+	 * sure a string really was Base64 before we throw the string away and
+	 * keep the bytes.
+	 * @param data The string to decode
+	 * @return The decoded bytes, or null if the string wasn't Base64
+	 */
+	static byte[] decodeBase64Exactly(String data)
+	{
+		try
+		{
+			byte[] bytes = Base64.decode(data);
+			if (data.equals(base64String(bytes))) return bytes;
+		}
+		catch (Exception e) {}
+		return null;
+	}
+	
+	/**
+	 * Decode a Base64-encoded string using the application's text encoding
+	 * @param data The string to decode
+	 * @param theApp A reference to the full Cryptnos application
+	 * @return The decoded bytes, or null if the string could not be decoded
+	 */
+	private static byte[] decodeBase64(String data, CryptnosApplication theApp)
+	{
+		try { return Base64.decode(data.getBytes(theApp.getTextEncoding())); }
+		catch (Exception e) { return null; }
+	}
+	
 	/**
 	 * Given a byte array, return a Base64-encoded string of its value.  This
 	 * method was added because there's no simple, single method way to do
@@ -679,72 +926,145 @@ public class SiteParameters {
 	}
 	
 	/**
-	 * Create the cipher used to encrypt or decrypt site parameter data.
+	 * Throw away every derived key in the key cache, as well as the vault
+	 * key.  This should be called whenever the keys might no longer be valid
+	 * (such as when the parameter salt changes), when we're running low on
+	 * memory, or whenever we don't want the keys sitting around in memory any
+	 * more.
+	 */
+	public static void clearKeyCache()
+	{
+		synchronized (keyCache) {
+			keyCache.clear();
+			keyCacheSalt = null;
+			keyCacheGeneration++;
+		}
+		synchronized (SiteParameters.class) { vaultKey = null; }
+	}
+	
+	/**
+	 * Encrypt or decrypt site parameter data.  Originally, this method created
+	 * a JCA Cipher for CryptnosApplication.KEY_FACTORY and handed it back to
+	 * the caller.  Now the same scheme is implemented in-tree by PBECipher,
+	 * which produces exactly the same bytes without depending on the
+	 * platform's security providers.
 	 * @param password A "secret" String value, usually the derived site
 	 * "key".  This is specified as an input parameter rather than using the
 	 * member variable because this method will be needed for one of the
 	 * constructors.
-	 * @param mode The Cipher encrypt/decryption mode.  This should be either
-	 * Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
-	 * @return A Cipher suitable for the encryption/decryption task.
-	 * @throws Exception Thrown if the mode is invalid or if any error occurs
-	 * while creating the cipher.
+	 * @param encrypt True to encrypt the data, false to decrypt it
+	 * @param data The data to encrypt or decrypt
+	 * @param useKeyCache True to add the key to the key cache if we have to
+	 * derive it, false to leave the cache alone.  A key that's already in
+	 * the cache is always used either way.
+	 * @return The encrypted or decrypted data
+	 * @throws Exception Thrown if any error occurs while encrypting or
+	 * decrypting the data.
 	 */
-	private static Cipher createCipher(String password, int mode)
-		throws Exception
+	private static byte[] crypt(String password, boolean encrypt, byte[] data,
+		boolean useKeyCache) throws Exception
 	{
-		// Asbestos underpants:
-		try
-		{
+		// Grab the parameter salt once, so we derive from and cache against
+		// the same salt even if it gets refreshed while we're working.  The
+		// salt is replaced with a new array whenever it's refreshed, so
+		// comparing the arrays themselves is enough to tell if it changed.
+		byte[] salt = CryptnosApplication.PARAMETER_SALT;
+		// Deriving the key is expensive, so check the key cache first.
+		// If we've already derived this key recently, reuse it.  If the
+		// salt has changed since the cache was filled, though, none of
+		// those keys are any good anymore:
+		CipherParameters params = null;
+		int generation;
+		synchronized (keyCache) {
+			if (keyCacheSalt != salt) {
+				keyCache.clear();
+				keyCacheSalt = salt;
+				keyCacheGeneration++;
+			}
+			generation = keyCacheGeneration;
+			params = keyCache.get(password);
+		}
+		// Otherwise, we'll need to derive the key and remember it for
+		// next time.  Note that we don't hold the lock while we derive
+		// the key; if two threads happen to derive the same key at the
+		// same time, they'll both get the same result anyway.  But if the
+		// cache was cleared (or the salt changed) in the meantime, we'll
+		// use the key this once and not put it back.
+		if (params == null) {
 			// I had a devil of a time getting this to work, but I eventually
 			// peeked at the Google "Secrets" application source code to get
-			// to this setup.  The Password Based Key (PBE) spec lets us
+			// to this setup.  The Password Based Key (PBE) scheme lets us
 			// specify a password to generate keys from.  We'll use the key
 			// passed in (most likely a "site key" from the site parameters)
 			// as that password, salting it with the device's unique ID to
 			// give it some uniqueness from device to device.
-			PBEKeySpec pbeKeySpec =	new PBEKeySpec(password.toCharArray(),
-				CryptnosApplication.PARAMETER_SALT,
-				CryptnosApplication.KEY_ITERATION_COUNT,
-				CryptnosApplication.KEY_LENGTH);
-			// Next we'll need a key factory to actually build the key:
-			SecretKeyFactory keyFac =
-				SecretKeyFactory.getInstance(CryptnosApplication.KEY_FACTORY);
-			// The key is generated from the key factory:
-			SecretKey key = keyFac.generateSecret(pbeKeySpec);
-			// The cipher needs some parameter specs to know how to use
-			// the key:
-			AlgorithmParameterSpec aps =
-				new PBEParameterSpec(CryptnosApplication.PARAMETER_SALT,
+			params = PBECipher.deriveParameters(password, salt,
 				CryptnosApplication.KEY_ITERATION_COUNT);
-			// Now that we have all of this information, actually start
-			// creating the cipher:
-			Cipher cipher = Cipher.getInstance(CryptnosApplication.KEY_FACTORY);
-			// For our purposes, we're combining the creation of encryption
-			// and decryption ciphers into one method.  So take the mode
-			// passed in and initialize the cipher based on that mode.  Note
-			// that the key and parameter specs are being pulled in at this
-			// point, making the cipher complete.  If we get an invalid mode
-			// type, throw an error.
-			switch (mode)
-			{
-				case Cipher.ENCRYPT_MODE:
-					cipher.init(Cipher.ENCRYPT_MODE, key, aps);
-					break;
-				case Cipher.DECRYPT_MODE:
-					cipher.init(Cipher.DECRYPT_MODE, key, aps);
-					break;
-				default:
-					throw new Exception("Invalid cipher mode");
+			if (useKeyCache) {
+				synchronized (keyCache) {
+					if (generation == keyCacheGeneration)
+						keyCache.put(password, params);
+				}
 			}
-			// By now our cipher *should* be ready.  Go ahead an return it:
-			return cipher;
 		}
-		// If anything blew up, throw it back out:
-		catch (Exception e)
+		// Now actually run the data through the cipher:
+		return PBECipher.process(params, encrypt, data);
+	}
+	
+	/**
+	 * Get the vault key used for version 2 records, deriving it if we haven't
+	 * already.  This is the only key derivation version 2 records need, so
+	 * it only happens once per session (or after the key cache is cleared).
+	 * @return The vault key
+	 * @throws Exception Thrown if the key could not be derived
+	 */
+	private static synchronized CipherParameters getVaultKey() throws Exception
+	{
+		// The parameter salt is replaced with a new array whenever it's
+		// refreshed, so if it's not the same array we derived our key from,
+		// we need to derive a new one.  We only want the key itself; every
+		// record gets its own IV.
+		if (vaultKey == null || vaultKeySalt != CryptnosApplication.PARAMETER_SALT)
 		{
-			throw e;
+			vaultKeySalt = CryptnosApplication.PARAMETER_SALT;
+			vaultKey = ((ParametersWithIV)PBECipher.deriveParameters(VAULT_PASSWORD,
+				vaultKeySalt, CryptnosApplication.KEY_ITERATION_COUNT)).getParameters();
+		}
+		return vaultKey;
+	}
+	
+	/**
+	 * Encrypt or decrypt site parameter data in the version 2 record format.
+	 * The data is encrypted with the vault key and a brand new random IV,
+	 * which is stored in front of the encrypted data so it can be decrypted
+	 * again later.
+	 * @param encrypt True to encrypt the data, false to decrypt it
+	 * @param data The data to encrypt, or the IV and encrypted data to
+	 * decrypt
+	 * @return The IV and encrypted data, or the decrypted data
+	 * @throws Exception Thrown if any error occurs while encrypting or
+	 * decrypting the data.
+	 */
+	private static byte[] vaultCrypt(boolean encrypt, byte[] data)
+		throws Exception
+	{
+		int ivLength = PBECipher.IV_SIZE / 8;
+		if (encrypt) {
+			byte[] iv = new byte[ivLength];
+			ivSource.nextBytes(iv);
+			byte[] encrypted = PBECipher.process(
+				new ParametersWithIV(getVaultKey(), iv), true, data);
+			byte[] out = new byte[ivLength + encrypted.length];
+			System.arraycopy(iv, 0, out, 0, ivLength);
+			System.arraycopy(encrypted, 0, out, ivLength, encrypted.length);
+			return out;
 		}
+		if (data.length <= ivLength)
+			throw new Exception("Encrypted record is too short");
+		byte[] encrypted = new byte[data.length - ivLength];
+		System.arraycopy(data, ivLength, encrypted, 0, encrypted.length);
+		return PBECipher.process(new ParametersWithIV(getVaultKey(), data, 0,
+			ivLength), false, encrypted);
 	}
 	
 }
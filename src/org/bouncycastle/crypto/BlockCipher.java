@@ -48,6 +48,25 @@ public interface BlockCipher
     public int processBlock(byte[] in, int inOff, byte[] out, int outOff)
         throws DataLengthException, IllegalStateException;
 
+    /**
+     * Process a run of contiguous blocks of input from the array in and
+     * write them to the out array.  This produces exactly the same output as
+     * calling processBlock() blockCount times, but lets the cipher check its
+     * bounds once and run the whole run as a single tight loop.
+     *
+     * @param in the array containing the input data.
+     * @param inOff offset into the in array the data starts at.
+     * @param blockCount the number of whole blocks to process.
+     * @param out the array the output data will be copied into.
+     * @param outOff the offset into the out array the output will start at.
+     * @exception DataLengthException if there isn't enough data in in, or
+     * space in out.
+     * @exception IllegalStateException if the cipher isn't initialised.
+     * @return the number of bytes processed and produced.
+     */
+    public int processBlocks(byte[] in, int inOff, int blockCount, byte[] out, int outOff)
+        throws DataLengthException, IllegalStateException;
+
     /**
      * Reset the cipher. After resetting the cipher is in the same state
      * as it was after the last init (if there was one).
@@ -210,20 +210,33 @@ public class BufferedBlockCipher
 
         if (len > gapLen)
         {
-            System.arraycopy(in, inOff, buf, bufOff, gapLen);
+            //
+            // top up and process a partially filled buffer first.  An
+            // empty buffer can skip this and go straight to the input.
+            //
+            if (bufOff != 0)
+            {
+                System.arraycopy(in, inOff, buf, bufOff, gapLen);
 
-            resultLen += cipher.processBlock(buf, 0, out, outOff);
+                resultLen += cipher.processBlock(buf, 0, out, outOff);
 
-            bufOff = 0;
-            len -= gapLen;
-            inOff += gapLen;
+                bufOff = 0;
+                len -= gapLen;
+                inOff += gapLen;
+            }
 
-            while (len > buf.length)
+            //
+            // hand every whole block but the last straight to the cipher
+            // in one call, rather than one processBlock() at a time.
+            //
+            if (len > buf.length)
             {
-                resultLen += cipher.processBlock(in, inOff, out, outOff + resultLen);
+                int blockCount = (len - 1) / blockSize;
+
+                resultLen += cipher.processBlocks(in, inOff, blockCount, out, outOff + resultLen);
 
-                len -= blockSize;
-                inOff += blockSize;
+                len -= blockCount * blockSize;
+                inOff += blockCount * blockSize;
             }
         }
 
@@ -1,13 +1,14 @@
 package org.bouncycastle.crypto.digests;
 
 import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.util.Memoable;
 
 /**
  * base implementation of MD4 family style digest as outlined in
  * "Handbook of Applied Cryptography", pages 344 - 347.
  */
 public abstract class GeneralDigest
-    implements ExtendedDigest
+    implements ExtendedDigest, Memoable
 {
     private static final int BYTE_LENGTH = 64;
     private byte[]  xBuf;
@@ -32,6 +33,12 @@ public abstract class GeneralDigest
     protected GeneralDigest(GeneralDigest t)
     {
         xBuf = new byte[t.xBuf.length];
+
+        copyIn(t);
+    }
+
+    protected void copyIn(GeneralDigest t)
+    {
         System.arraycopy(t.xBuf, 0, xBuf, 0, t.xBuf.length);
 
         xBufOff = t.xBufOff;
@@ -68,6 +75,24 @@ public abstract class GeneralDigest
             len--;
         }
 
+        //
+        // process whole blocks straight out of the caller's array.
+        //
+        if (len >= BYTE_LENGTH)
+        {
+            do
+            {
+                processBlock(in, inOff);
+
+                inOff += BYTE_LENGTH;
+                len -= BYTE_LENGTH;
+                byteCount += BYTE_LENGTH;
+            }
+            while (len >= BYTE_LENGTH);
+
+            processBlocksDone();
+        }
+
         //
         // process whole words.
         //
@@ -129,6 +154,29 @@ public abstract class GeneralDigest
     
     protected abstract void processWord(byte[] in, int inOff);
 
+    /**
+     * Process a whole 64 byte block taken directly from the caller's
+     * array.  The default simply feeds the block through processWord(),
+     * which is always correct; subclasses that can decode a block
+     * straight into their working state when they are sitting on a block
+     * boundary should override this (and processBlocksDone()).
+     */
+    protected void processBlock(byte[] in, int inOff)
+    {
+        for (int i = 0; i < BYTE_LENGTH; i += 4)
+        {
+            processWord(in, inOff + i);
+        }
+    }
+
+    /**
+     * Called once at the end of a run of processBlock(byte[], int) calls,
+     * so subclasses that skipped per-block housekeeping can catch up.
+     */
+    protected void processBlocksDone()
+    {
+    }
+
     protected abstract void processLength(long bitLength);
 
     protected abstract void processBlock();
@@ -1,6 +1,7 @@
 package org.bouncycastle.crypto.digests;
 
 import org.bouncycastle.crypto.util.Pack;
+import org.bouncycastle.util.Memoable;
 
 /**
  * implementation of SHA-1 as outlined in "Handbook of Applied Cryptography", pages 346 - 349.
@@ -34,6 +35,13 @@ public class SHA1Digest
     {
         super(t);
 
+        copyIn(t);
+    }
+
+    private void copyIn(SHA1Digest t)
+    {
+        super.copyIn(t);
+
         H1 = t.H1;
         H2 = t.H2;
         H3 = t.H3;
@@ -283,8 +291,16 @@ public class SHA1Digest
             X[i] = 0;
         }
     }
-}
-
 
+    public Memoable copy()
+    {
+        return new SHA1Digest(this);
+    }
 
+    public void reset(Memoable other)
+    {
+        SHA1Digest d = (SHA1Digest)other;
 
+        copyIn(d);
+    }
+}
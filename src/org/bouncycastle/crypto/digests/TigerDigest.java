@@ -1,6 +1,8 @@
 package org.bouncycastle.crypto.digests;
 
 import org.bouncycastle.crypto.ExtendedDigest;
+import org.bouncycastle.crypto.util.Pack;
+import org.bouncycastle.util.Memoable;
 
 /**
  * implementation of Tiger based on:
@@ -8,7 +10,7 @@ import org.bouncycastle.crypto.ExtendedDigest;
  *  http://www.cs.technion.ac.il/~biham/Reports/Tiger</a>
  */
 public class TigerDigest
-    implements ExtendedDigest
+    implements ExtendedDigest, Memoable
 {
     private static final int BYTE_LENGTH = 64;
     
@@ -569,6 +571,11 @@ public class TigerDigest
      * message digest.
      */
     public TigerDigest(TigerDigest t)
+    {
+        copyIn(t);
+    }
+
+    private void copyIn(TigerDigest t)
     {
         a = t.a;
         b = t.b;
@@ -643,6 +650,30 @@ public class TigerDigest
             len--;
         }
 
+        //
+        // process whole blocks straight out of the caller's array.  On
+        // a block boundary Pack can decode each block directly into x,
+        // and x only needs clearing once the whole run is done.
+        //
+        if ((bOff == 0) && (xOff == 0) && (len >= BYTE_LENGTH))
+        {
+            do
+            {
+                Pack.littleEndianToLong(in, inOff, x);
+                compress();
+
+                inOff += BYTE_LENGTH;
+                len -= BYTE_LENGTH;
+                byteCount += BYTE_LENGTH;
+            }
+            while (len >= BYTE_LENGTH);
+
+            for (int i = 0; i != x.length; i++)
+            {
+                x[i] = 0;
+            }
+        }
+
         //
         // process whole words.
         //
@@ -667,120 +698,236 @@ public class TigerDigest
         }
     }
 
-    private void roundABC(
-        long    x,
-        long    mul)
+    private void processBlock()
     {
-         c ^= x ;
-         a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
-                ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
-         b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
-                ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
-         b *= mul;
-    }
+        compress();
 
-    private void roundBCA(
-        long    x,
-        long    mul)
-    {
-         a ^= x ;
-         b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
-                ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
-         c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
-                ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
-         c *= mul;
+        //
+        // clear the x buffer
+        //
+        xOff = 0;
+        for (int i = 0; i != x.length; i++)
+        {
+            x[i] = 0;
+        }
     }
 
-    private void roundCAB(
-        long    x,
-        long    mul)
+    /*
+     * the compression function proper: three passes of eight rounds with a
+     * key schedule between each pass, fully unrolled over local copies of
+     * the chaining variables and message words so the JIT can keep the
+     * whole thing in registers instead of bouncing through fields and x[].
+     */
+    private void compress()
     {
-         b ^= x ;
-         c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
-                ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
-         a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
-                ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
-         a *= mul;
-    }
+        long a = this.a, b = this.b, c = this.c;
+        long aa = a, bb = b, cc = c;
 
-    private void keySchedule()
-    {
-        x[0] -= x[7] ^ 0xA5A5A5A5A5A5A5A5L; 
-        x[1] ^= x[0]; 
-        x[2] += x[1]; 
-        x[3] -= x[2] ^ ((~x[1]) << 19); 
-        x[4] ^= x[3]; 
-        x[5] += x[4]; 
-        x[6] -= x[5] ^ ((~x[4]) >>> 23); 
-        x[7] ^= x[6]; 
-        x[0] += x[7]; 
-        x[1] -= x[0] ^ ((~x[7]) << 19); 
-        x[2] ^= x[1]; 
-        x[3] += x[2]; 
-        x[4] -= x[3] ^ ((~x[2]) >>> 23); 
-        x[5] ^= x[4]; 
-        x[6] += x[5]; 
-        x[7] -= x[6] ^ 0x0123456789ABCDEFL;
-    }
+        long x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        long x4 = x[4], x5 = x[5], x6 = x[6], x7 = x[7];
 
-    private void processBlock()
-    {
         //
-        // save abc
+        // pass 1
         //
-        long aa = a;
-        long bb = b;
-        long cc = c;
+        c ^= x0;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 5;
+        a ^= x1;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 5;
+        b ^= x2;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 5;
+        c ^= x3;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 5;
+        a ^= x4;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 5;
+        b ^= x5;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 5;
+        c ^= x6;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 5;
+        a ^= x7;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 5;
 
         //
-        // rounds and schedule
+        // key schedule
         //
-        roundABC(x[0], 5);
-        roundBCA(x[1], 5);
-        roundCAB(x[2], 5);
-        roundABC(x[3], 5);
-        roundBCA(x[4], 5);
-        roundCAB(x[5], 5);
-        roundABC(x[6], 5);
-        roundBCA(x[7], 5);
-
-        keySchedule();
-
-        roundCAB(x[0], 7);
-        roundABC(x[1], 7);
-        roundBCA(x[2], 7);
-        roundCAB(x[3], 7);
-        roundABC(x[4], 7);
-        roundBCA(x[5], 7);
-        roundCAB(x[6], 7);
-        roundABC(x[7], 7);
-
-        keySchedule();
-
-        roundBCA(x[0], 9);
-        roundCAB(x[1], 9);
-        roundABC(x[2], 9);
-        roundBCA(x[3], 9);
-        roundCAB(x[4], 9);
-        roundABC(x[5], 9);
-        roundBCA(x[6], 9);
-        roundCAB(x[7], 9);
+        x0 -= x7 ^ 0xA5A5A5A5A5A5A5A5L;
+        x1 ^= x0;
+        x2 += x1;
+        x3 -= x2 ^ ((~x1) << 19);
+        x4 ^= x3;
+        x5 += x4;
+        x6 -= x5 ^ ((~x4) >>> 23);
+        x7 ^= x6;
+        x0 += x7;
+        x1 -= x0 ^ ((~x7) << 19);
+        x2 ^= x1;
+        x3 += x2;
+        x4 -= x3 ^ ((~x2) >>> 23);
+        x5 ^= x4;
+        x6 += x5;
+        x7 -= x6 ^ 0x0123456789ABCDEFL;
 
         //
-        // feed forward
+        // pass 2
         //
-        a ^= aa;
-        b -= bb;
-        c += cc;
+        b ^= x0;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 7;
+        c ^= x1;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 7;
+        a ^= x2;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 7;
+        b ^= x3;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 7;
+        c ^= x4;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 7;
+        a ^= x5;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 7;
+        b ^= x6;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 7;
+        c ^= x7;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 7;
 
         //
-        // clear the x buffer
+        // key schedule
         //
-        xOff = 0;
-        for (int i = 0; i != x.length; i++)
-        {
-            x[i] = 0;
-        }
+        x0 -= x7 ^ 0xA5A5A5A5A5A5A5A5L;
+        x1 ^= x0;
+        x2 += x1;
+        x3 -= x2 ^ ((~x1) << 19);
+        x4 ^= x3;
+        x5 += x4;
+        x6 -= x5 ^ ((~x4) >>> 23);
+        x7 ^= x6;
+        x0 += x7;
+        x1 -= x0 ^ ((~x7) << 19);
+        x2 ^= x1;
+        x3 += x2;
+        x4 -= x3 ^ ((~x2) >>> 23);
+        x5 ^= x4;
+        x6 += x5;
+        x7 -= x6 ^ 0x0123456789ABCDEFL;
+
+        //
+        // pass 3
+        //
+        a ^= x0;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 9;
+        b ^= x1;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 9;
+        c ^= x2;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 9;
+        a ^= x3;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 9;
+        b ^= x4;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 9;
+        c ^= x5;
+        a -= t1[(int)c & 0xff] ^ t2[(int)(c >> 16) & 0xff]
+           ^ t3[(int)(c >> 32) & 0xff] ^ t4[(int)(c >> 48) & 0xff];
+        b += t4[(int)(c >> 8) & 0xff] ^ t3[(int)(c >> 24) & 0xff]
+           ^ t2[(int)(c >> 40) & 0xff] ^ t1[(int)(c >> 56) & 0xff];
+        b *= 9;
+        a ^= x6;
+        b -= t1[(int)a & 0xff] ^ t2[(int)(a >> 16) & 0xff]
+           ^ t3[(int)(a >> 32) & 0xff] ^ t4[(int)(a >> 48) & 0xff];
+        c += t4[(int)(a >> 8) & 0xff] ^ t3[(int)(a >> 24) & 0xff]
+           ^ t2[(int)(a >> 40) & 0xff] ^ t1[(int)(a >> 56) & 0xff];
+        c *= 9;
+        b ^= x7;
+        c -= t1[(int)b & 0xff] ^ t2[(int)(b >> 16) & 0xff]
+           ^ t3[(int)(b >> 32) & 0xff] ^ t4[(int)(b >> 48) & 0xff];
+        a += t4[(int)(b >> 8) & 0xff] ^ t3[(int)(b >> 24) & 0xff]
+           ^ t2[(int)(b >> 40) & 0xff] ^ t1[(int)(b >> 56) & 0xff];
+        a *= 9;
+
+        //
+        // feed forward
+        //
+        this.a = a ^ aa;
+        this.b = b - bb;
+        this.c = c + cc;
     }
 
     public void unpackWord(
@@ -863,4 +1010,16 @@ public class TigerDigest
     {
         return BYTE_LENGTH;
     }
+
+    public Memoable copy()
+    {
+        return new TigerDigest(this);
+    }
+
+    public void reset(Memoable other)
+    {
+        TigerDigest d = (TigerDigest)other;
+
+        copyIn(d);
+    }
 }
@@ -2,6 +2,7 @@ package org.bouncycastle.crypto.digests;
 
 import org.bouncycastle.crypto.ExtendedDigest;
 import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Memoable;
 
 
 /**
@@ -10,7 +11,7 @@ import org.bouncycastle.util.Arrays;
  *  
  */
 public final class WhirlpoolDigest 
-    implements ExtendedDigest
+    implements ExtendedDigest, Memoable
 {
     private static final int BYTE_LENGTH = 64;
     
@@ -46,9 +47,16 @@ public final class WhirlpoolDigest
     private static final long[] C6 = new long[256];
     private static final long[] C7 = new long[256];
 
-    private final long[] _rc = new long[ROUNDS + 1];
-        
-    public WhirlpoolDigest()
+    private static final long[] _rc = new long[ROUNDS + 1];
+
+    /*
+     * The tables above are shared by every instance, so build them exactly
+     * once when the class is loaded.  Building them in the constructor meant
+     * every new digest paid for a full table build and rewrote arrays that
+     * other threads may have been reading at the time.  Class initialization
+     * guarantees the finished tables are safely published to all threads.
+     */
+    static
     {
         for (int i = 0; i < 256; i++)
         {
@@ -83,10 +91,13 @@ public final class WhirlpoolDigest
                         (C6[i + 6] & 0x000000000000ff00L) ^ 
                         (C7[i + 7] & 0x00000000000000ffL);
         }
+    }
         
+    public WhirlpoolDigest()
+    {
     }
 
-    private long packIntoLong(int b7, int b6, int b5, int b4, int b3, int b2, int b1, int b0)
+    private static long packIntoLong(int b7, int b6, int b5, int b4, int b3, int b2, int b1, int b0)
     {
         return 
                     ((long)b7 << 56) ^
@@ -103,7 +114,7 @@ public final class WhirlpoolDigest
      * int's are used to prevent sign extension.  The values that are really being used are
      * actually just 0..255
      */
-    private int maskWithReductionPolynomial(int input)
+    private static int maskWithReductionPolynomial(int input)
     {
         int rv = input;
         if (rv >= 0x100L) // high bit set
@@ -119,7 +130,14 @@ public final class WhirlpoolDigest
     private static final int BITCOUNT_ARRAY_SIZE = 32;
     private byte[]  _buffer    = new byte[64];
     private int     _bufferPos = 0;
-    private short[] _bitCount  = new short[BITCOUNT_ARRAY_SIZE];
+    /*
+     * The message length in bits, as a 128-bit unsigned value split over two
+     * longs.  Whirlpool nominally uses a 256-bit length, but the upper half
+     * will always be zero for any message we could actually hash, so it is
+     * only expanded to the full BITCOUNT_ARRAY_SIZE bytes in finish().
+     */
+    private long    _bitCountHigh = 0;
+    private long    _bitCountLow  = 0;
     
     // -- internal hash state --
     private long[] _hash  = new long[8];
@@ -136,12 +154,16 @@ public final class WhirlpoolDigest
      */
     public WhirlpoolDigest(WhirlpoolDigest originalDigest)
     {
-        System.arraycopy(originalDigest._rc, 0, _rc, 0, _rc.length);
-        
+        copyIn(originalDigest);
+    }
+
+    private void copyIn(WhirlpoolDigest originalDigest)
+    {
         System.arraycopy(originalDigest._buffer, 0, _buffer, 0, _buffer.length);
         
         this._bufferPos = originalDigest._bufferPos;
-        System.arraycopy(originalDigest._bitCount, 0, _bitCount, 0, _bitCount.length);
+        this._bitCountHigh = originalDigest._bitCountHigh;
+        this._bitCountLow = originalDigest._bitCountLow;
         
         // -- internal hash state --
         System.arraycopy(originalDigest._hash, 0, _hash, 0, _hash.length);
@@ -182,7 +204,8 @@ public final class WhirlpoolDigest
     {
         // set variables to null, blank, whatever
         _bufferPos = 0;
-        Arrays.fill(_bitCount, (short)0);
+        _bitCountHigh = 0;
+        _bitCountLow = 0;
         Arrays.fill(_buffer, (byte)0);
         Arrays.fill(_hash, 0);
         Arrays.fill(_K, 0);
@@ -285,64 +308,93 @@ public final class WhirlpoolDigest
     }
 
     public void update(byte in)
+    {
+        bufferByte(in);
+        addBits(8);
+    }
+
+    /*
+     * Add a byte to the buffer, processing it once it fills up, without
+     * touching the bit count.
+     */
+    private void bufferByte(byte in)
     {
         _buffer[_bufferPos] = in;
 
-        //System.out.println("adding to buffer = "+_buffer[_bufferPos]);
-        
         ++_bufferPos;
         
         if (_bufferPos == _buffer.length)
         {
             processFilledBuffer(_buffer, 0);
         }
-
-        increment();
     }
 
     /*
-     * increment() can be implemented in this way using 2 arrays or
-     * by having some temporary variables that are used to set the
-     * value provided by EIGHT[i] and carry within the loop.
-     * 
-     * not having done any timing, this seems likely to be faster
-     * at the slight expense of 32*(sizeof short) bytes
+     * Add to the 128-bit message bit count, carrying into the high word if
+     * the low word wraps around.  The comparison flips the sign bits to get
+     * an unsigned comparison of the low word before and after.
      */
-    private static final short[] EIGHT = new short[BITCOUNT_ARRAY_SIZE];
-    static 
+    private void addBits(long bits)
     {
-        EIGHT[BITCOUNT_ARRAY_SIZE - 1] = 8;
+        long old = _bitCountLow;
+        _bitCountLow += bits;
+        if ((_bitCountLow ^ Long.MIN_VALUE) < (old ^ Long.MIN_VALUE))
+        {
+            _bitCountHigh++;
+        }
     }
-    
-    private void increment()
+
+    /*
+     * Bulk update.  The bit count is bumped once for the whole input rather
+     * than once per byte, and whole 64 byte blocks are decoded straight from
+     * the input array into the block without going through the buffer.  Only
+     * the bytes needed to top up a partially filled buffer, and whatever is
+     * left over at the end, go through the buffer one at a time.
+     */
+    public void update(byte[] in, int inOff, int len)
     {
-        int carry = 0;
-        for (int i = _bitCount.length - 1; i >= 0; i--)
+        if (len <= 0)
         {
-            int sum = (_bitCount[i] & 0xff) + EIGHT[i] + carry;
+            return;
+        }
 
-            carry = sum >>> 8;
-            _bitCount[i] = (short)(sum & 0xff);
+        addBits((long)len << 3);
+
+        // top up a partially filled buffer first
+        while (_bufferPos != 0 && len > 0)
+        {
+            bufferByte(in[inOff]);
+            ++inOff;
+            --len;
         }
-    }    
-    
-    public void update(byte[] in, int inOff, int len)
-    {
+
+        // process whole blocks straight from the input
+        while (len >= BYTE_LENGTH)
+        {
+            for (int i = 0; i < 8; i++)
+            {
+                _block[i] = bytesToLongFromBuffer(in, inOff + i * 8);
+            }
+            processBlock();
+            inOff += BYTE_LENGTH;
+            len -= BYTE_LENGTH;
+        }
+
+        // buffer whatever is left over
         while (len > 0)
         {
-            update(in[inOff]);
+            bufferByte(in[inOff]);
             ++inOff;
             --len;
         }
-        
     }
     
     private void finish()
     {
         /*
-         * this makes a copy of the current bit length. at the expense of an
-         * object creation of 32 bytes rather than providing a _stopCounting
-         * boolean which was the alternative I could think of.
+         * this expands the bit length into its full 32 byte form.  Padding
+         * goes through bufferByte(), which doesn't count, so this could just
+         * as well be done at the end.
          */
         byte[] bitLength = copyBitLength(); 
         
@@ -363,13 +415,13 @@ public final class WhirlpoolDigest
         {
             while (_bufferPos != 0)
             {
-                update((byte)0);
+                bufferByte((byte)0);
             }
         }
         
         while (_bufferPos <= 32)
         {
-            update((byte)0);
+            bufferByte((byte)0);
         }
         
         // copy the length information to the final 32 bytes of the
@@ -382,10 +434,8 @@ public final class WhirlpoolDigest
     private byte[] copyBitLength()
     {
         byte[] rv = new byte[BITCOUNT_ARRAY_SIZE];
-        for (int i = 0; i < rv.length; i++)
-        {
-            rv[i] = (byte)(_bitCount[i] & 0xff);
-        }
+        convertLongToByteArray(_bitCountHigh, rv, BITCOUNT_ARRAY_SIZE - 16);
+        convertLongToByteArray(_bitCountLow, rv, BITCOUNT_ARRAY_SIZE - 8);
         return rv;
     }    
     
@@ -393,4 +443,16 @@ public final class WhirlpoolDigest
     {
         return BYTE_LENGTH;
     }
+
+    public Memoable copy()
+    {
+        return new WhirlpoolDigest(this);
+    }
+
+    public void reset(Memoable other)
+    {
+        WhirlpoolDigest d = (WhirlpoolDigest)other;
+
+        copyIn(d);
+    }
 }
@@ -616,6 +616,48 @@ public class RijndaelEngine
         return BC / 2;
     }
 
+    public int processBlocks(
+        byte[] in,
+        int inOff,
+        int blockCount,
+        byte[] out,
+        int outOff)
+    {
+        int blockSize = BC / 2;
+        int len = blockCount * blockSize;
+
+        if (workingKey == null)
+        {
+            throw new IllegalStateException("Rijndael engine not initialised");
+        }
+
+        if ((inOff + len) > in.length)
+        {
+            throw new DataLengthException("input buffer too short");
+        }
+
+        if ((outOff + len) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        for (int i = 0; i < len; i += blockSize)
+        {
+            unpackBlock(in, inOff + i);
+            if (forEncryption)
+            {
+                encryptBlock(workingKey);
+            }
+            else
+            {
+                decryptBlock(workingKey);
+            }
+            packBlock(out, outOff + i);
+        }
+
+        return len;
+    }
+
     public void reset()
     {
     }
@@ -21,6 +21,7 @@ public class PKCS5S2ParametersGenerator
     extends PBEParametersGenerator
 {
     private Mac hMac;
+    private byte[] state;
 
     /**
      * construct a PKCS5 Scheme 2 Parameters generator.
@@ -33,20 +34,26 @@ public class PKCS5S2ParametersGenerator
     public PKCS5S2ParametersGenerator(Digest digest)
     {
         hMac = new HMac(digest);
+        state = new byte[hMac.getMacSize()];
     }
 
+    // EDIT BY JTD 10/17/2026:  The original BouncyCastle code called
+    // hMac.init() at the top of F() and again on every single iteration, which
+    // re-derives both HMAC pads and re-hashes them each time.  HMac.doFinal()
+    // already leaves the MAC reset and ready for the same key, so we now
+    // initialize it once in generateDerivedKey() and let doFinal() do the rest.
+    // The state buffer is also allocated once up front rather than per block.
     private void F(
-        byte[]  P,
         byte[]  S,
         int     c,
         byte[]  iBuf,
         byte[]  out,
         int     outOff)
     {
-        byte[]              state = new byte[hMac.getMacSize()];
-        CipherParameters    param = new KeyParameter(P);
-
-        hMac.init(param);
+        if (c == 0)
+        {
+            throw new IllegalArgumentException("iteration count must be at least 1.");
+        }
 
         if (S != null)
         {
@@ -59,14 +66,8 @@ public class PKCS5S2ParametersGenerator
 
         System.arraycopy(state, 0, out, outOff, state.length);
 
-        if (c == 0)
-        {
-            throw new IllegalArgumentException("iteration count must be at least 1.");
-        }
-        
         for (int count = 1; count < c; count++)
         {
-            hMac.init(param);
             hMac.update(state, 0, state.length);
             hMac.doFinal(state, 0);
 
@@ -95,11 +96,15 @@ public class PKCS5S2ParametersGenerator
         byte[]  iBuf = new byte[4];
         byte[]  out = new byte[l * hLen];
 
+        CipherParameters param = new KeyParameter(password);
+
+        hMac.init(param);
+
         for (int i = 1; i <= l; i++)
         {
             intToOctet(iBuf, i);
 
-            F(password, salt, iterationCount, iBuf, out, (i - 1) * hLen);
+            F(salt, iterationCount, iBuf, out, (i - 1) * hLen);
         }
 
         return out;
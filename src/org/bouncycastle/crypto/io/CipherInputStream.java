@@ -0,0 +1,264 @@
+package org.bouncycastle.crypto.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * A CipherInputStream is composed of an InputStream and a BufferedBlockCipher so
+ * that read() methods return data that are read in from the
+ * underlying InputStream but have been additionally processed by the
+ * cipher.  The cipher must be fully initialized before being used by a
+ * CipherInputStream.
+ * <p>
+ * For example, if the cipher is initialized for decryption, the
+ * CipherInputStream will attempt to read in data and decrypt them,
+ * before returning the decrypted data.
+ * <p>
+ * The underlying stream is read in large chunks, so the cipher gets to
+ * process whole runs of blocks at a time, and only one chunk of input and
+ * output is ever held in memory no matter how long the stream is.
+ */
+public class CipherInputStream
+    extends FilterInputStream
+{
+    private static final int INPUT_BUF_SIZE = 16384;
+
+    private BufferedBlockCipher bufferedBlockCipher;
+
+    private final byte[] inBuf;
+
+    private byte[] buf;
+    private int bufOff;
+    private int maxBuf;
+    private boolean finalized;
+
+    /**
+     * Constructs a CipherInputStream from an InputStream and a
+     * BufferedBlockCipher, using the default input buffer size.
+     */
+    public CipherInputStream(
+        InputStream is,
+        BufferedBlockCipher cipher)
+    {
+        this(is, cipher, INPUT_BUF_SIZE);
+    }
+
+    /**
+     * Constructs a CipherInputStream from an InputStream, a
+     * BufferedBlockCipher, and a specified input buffer size.
+     *
+     * @param is the input stream.
+     * @param cipher the cipher to use to process the data read from the
+     * input stream.
+     * @param bufSize the number of bytes to read from the input stream at
+     * a time.
+     */
+    public CipherInputStream(
+        InputStream is,
+        BufferedBlockCipher cipher,
+        int bufSize)
+    {
+        super(is);
+
+        this.bufferedBlockCipher = cipher;
+
+        inBuf = new byte[bufSize];
+
+        //
+        // a single update can release at most one block that was already
+        // buffered in the cipher, and the final block plus any padding can
+        // add at most two more, so this is always big enough.
+        //
+        buf = new byte[bufSize + 2 * cipher.getBlockSize()];
+    }
+
+    /**
+     * Read data from the underlying stream and process it with the cipher
+     * until the cipher produces some output, or the end of the input stream
+     * is reached.
+     *
+     * @return the number of bytes now available in buf, or -1 if the input
+     * and cipher are exhausted.
+     */
+    private int nextChunk()
+        throws IOException
+    {
+        if (finalized)
+        {
+            return -1;
+        }
+
+        bufOff = 0;
+        maxBuf = 0;
+
+        // Keep reading until EOF or cipher processing produces data
+        while (maxBuf == 0)
+        {
+            int read = in.read(inBuf);
+            if (read == -1)
+            {
+                finaliseCipher();
+                if (maxBuf == 0)
+                {
+                    return -1;
+                }
+                return maxBuf;
+            }
+
+            maxBuf = bufferedBlockCipher.processBytes(inBuf, 0, read, buf, 0);
+        }
+
+        return maxBuf;
+    }
+
+    private void finaliseCipher()
+        throws IOException
+    {
+        finalized = true;
+
+        try
+        {
+            maxBuf = bufferedBlockCipher.doFinal(buf, 0);
+        }
+        catch (InvalidCipherTextException e)
+        {
+            throw new IOException("Error finalising cipher: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads data from the underlying stream and processes it with the cipher until the cipher
+     * outputs data, and returns the next available byte.
+     * <p>
+     * If the underlying stream is exhausted by this call, the cipher will be finalised.
+     *
+     * @throws IOException if there was an error closing the input stream, or if the cipher
+     * could not be finalised (e.g. the padding was corrupt).
+     */
+    public int read()
+        throws IOException
+    {
+        if (bufOff >= maxBuf)
+        {
+            if (nextChunk() < 0)
+            {
+                return -1;
+            }
+        }
+
+        return buf[bufOff++] & 0xff;
+    }
+
+    /**
+     * Reads data from the underlying stream and processes it with the cipher until the cipher
+     * outputs data, and then returns up to <code>b.length</code> bytes in the provided array.
+     *
+     * @param b the buffer into which the data is read.
+     * @return the total number of bytes read into the buffer, or <code>-1</code> if there is no
+     *         more data because the end of the stream has been reached.
+     * @throws IOException if there was an error reading the input stream, or if the cipher
+     * could not be finalised (e.g. the padding was corrupt).
+     */
+    public int read(
+        byte[] b)
+        throws IOException
+    {
+        return read(b, 0, b.length);
+    }
+
+    /**
+     * Reads data from the underlying stream and processes it with the cipher until the cipher
+     * outputs data, and then returns up to <code>len</code> bytes in the provided array.
+     *
+     * @param b the buffer into which the data is read.
+     * @param off the start offset in the destination array <code>b</code>
+     * @param len the maximum number of bytes read.
+     * @return the total number of bytes read into the buffer, or <code>-1</code> if there is no
+     *         more data because the end of the stream has been reached.
+     * @throws IOException if there was an error reading the input stream, or if the cipher
+     * could not be finalised (e.g. the padding was corrupt).
+     */
+    public int read(
+        byte[] b,
+        int off,
+        int len)
+        throws IOException
+    {
+        if (bufOff >= maxBuf)
+        {
+            if (nextChunk() < 0)
+            {
+                return -1;
+            }
+        }
+
+        int toSupply = Math.min(len, available());
+        System.arraycopy(buf, bufOff, b, off, toSupply);
+        bufOff += toSupply;
+        return toSupply;
+    }
+
+    public long skip(
+        long n)
+        throws IOException
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+
+        int skip = (int)Math.min(n, available());
+        bufOff += skip;
+        return skip;
+    }
+
+    public int available()
+        throws IOException
+    {
+        return maxBuf - bufOff;
+    }
+
+    /**
+     * Closes the underlying input stream and resets the cipher.  Any data
+     * that has not been read yet is discarded; in particular, the cipher is
+     * not finalised, so a consumer that stops early (say, an inflater that
+     * has found the end of its data) won't trip over the padding check.
+     *
+     * @throws IOException if there was an error closing the input stream.
+     */
+    public void close()
+        throws IOException
+    {
+        try
+        {
+            in.close();
+        }
+        finally
+        {
+            bufferedBlockCipher.reset();
+            bufOff = 0;
+            maxBuf = 0;
+            finalized = true;
+        }
+    }
+
+    public void mark(
+        int readlimit)
+    {
+    }
+
+    public void reset()
+        throws IOException
+    {
+        throw new IOException("mark/reset not supported");
+    }
+
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package org.bouncycastle.crypto.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * A CipherOutputStream is composed of an OutputStream and a BufferedBlockCipher so
+ * that write() methods first process the data before writing it out to the
+ * underlying OutputStream.  The cipher must be fully initialized before being
+ * used by a CipherOutputStream.
+ * <p>
+ * For example, if the cipher is initialized for encryption, the
+ * CipherOutputStream will encrypt the data before writing the encrypted data
+ * to the underlying stream.
+ * <p>
+ * The cipher is finalised when the stream is closed, so the stream must be
+ * closed (not just flushed) for the output to be complete.
+ */
+public class CipherOutputStream
+    extends FilterOutputStream
+{
+    private BufferedBlockCipher bufferedBlockCipher;
+
+    private final byte[] oneByte = new byte[1];
+    private byte[] buf;
+
+    /**
+     * Constructs a CipherOutputStream from an OutputStream and a
+     * BufferedBlockCipher.
+     */
+    public CipherOutputStream(
+        OutputStream os,
+        BufferedBlockCipher cipher)
+    {
+        super(os);
+        this.bufferedBlockCipher = cipher;
+    }
+
+    /**
+     * Writes the specified byte to this output stream.
+     *
+     * @param b the <code>byte</code>.
+     * @exception java.io.IOException if an I/O error occurs.
+     */
+    public void write(
+        int b)
+        throws IOException
+    {
+        oneByte[0] = (byte)b;
+
+        write(oneByte, 0, 1);
+    }
+
+    /**
+     * Writes <code>b.length</code> bytes from the specified byte array
+     * to this output stream.
+     *
+     * @param b the data.
+     * @exception java.io.IOException if an I/O error occurs.
+     */
+    public void write(
+        byte[] b)
+        throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Writes <code>len</code> bytes from the specified byte array
+     * starting at offset <code>off</code> to this output stream.
+     *
+     * @param b the data.
+     * @param off the start offset in the data.
+     * @param len the number of bytes to write.
+     * @exception java.io.IOException if an I/O error occurs.
+     */
+    public void write(
+        byte[] b,
+        int off,
+        int len)
+        throws IOException
+    {
+        ensureCapacity(bufferedBlockCipher.getUpdateOutputSize(len));
+
+        int outLen = bufferedBlockCipher.processBytes(b, off, len, buf, 0);
+
+        if (outLen != 0)
+        {
+            out.write(buf, 0, outLen);
+        }
+    }
+
+    /**
+     * Make sure the output buffer can hold at least the given number of
+     * bytes.  The buffer is only ever grown, so once the writes settle into
+     * a steady size no more allocations take place.
+     */
+    private void ensureCapacity(int outputSize)
+    {
+        if (buf == null || buf.length < outputSize)
+        {
+            buf = new byte[outputSize];
+        }
+    }
+
+    /**
+     * Flushes this output stream by forcing any buffered output bytes
+     * to be written out.
+     * <p>
+     * Any data still buffered in the cipher (i.e. less than a whole block)
+     * is not written; that only happens when the stream is closed.
+     *
+     * @exception java.io.IOException if an I/O error occurs.
+     */
+    public void flush()
+        throws IOException
+    {
+        out.flush();
+    }
+
+    /**
+     * Closes this output stream and releases any system resources
+     * associated with this stream.
+     * <p>
+     * This method invokes the <code>doFinal</code> method of the encapsulated
+     * cipher object, which causes any bytes buffered by the encapsulated
+     * cipher to be processed.  The result is written out by calling the
+     * <code>flush</code> method of this output stream.
+     *
+     * @exception java.io.IOException if an I/O error occurs.
+     */
+    public void close()
+        throws IOException
+    {
+        ensureCapacity(bufferedBlockCipher.getOutputSize(0));
+
+        IOException error = null;
+        try
+        {
+            int outLen = bufferedBlockCipher.doFinal(buf, 0);
+
+            if (outLen != 0)
+            {
+                out.write(buf, 0, outLen);
+            }
+        }
+        catch (InvalidCipherTextException e)
+        {
+            error = new IOException("Error finalising cipher: " + e.getMessage());
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+
+        try
+        {
+            flush();
+            out.close();
+        }
+        catch (IOException e)
+        {
+            // Invalid ciphertext takes precedence over close error
+            if (error == null)
+            {
+                error = e;
+            }
+        }
+
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+}
@@ -148,6 +148,48 @@ public class CBCBlockCipher
         return (encrypting) ? encryptBlock(in, inOff, out, outOff) : decryptBlock(in, inOff, out, outOff);
     }
 
+    /**
+     * Process a run of contiguous blocks of input from the array in and
+     * write them to the out array.
+     *
+     * @param in the array containing the input data.
+     * @param inOff offset into the in array the data starts at.
+     * @param blockCount the number of whole blocks to process.
+     * @param out the array the output data will be copied into.
+     * @param outOff the offset into the out array the output will start at.
+     * @exception DataLengthException if there isn't enough data in in, or
+     * space in out.
+     * @exception IllegalStateException if the cipher isn't initialised.
+     * @return the number of bytes processed and produced.
+     */
+    public int processBlocks(
+        byte[]      in,
+        int         inOff,
+        int         blockCount,
+        byte[]      out,
+        int         outOff)
+        throws DataLengthException, IllegalStateException
+    {
+        int len = blockCount * blockSize;
+
+        if ((inOff + len) > in.length)
+        {
+            throw new DataLengthException("input buffer too short");
+        }
+
+        if ((outOff + len) > out.length)
+        {
+            throw new DataLengthException("output buffer too short");
+        }
+
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        return (encrypting) ? encryptBlocks(in, inOff, len, out, outOff) : decryptBlocks(in, inOff, len, out, outOff);
+    }
+
     /**
      * reset the chaining vector back to the IV and reset the underlying
      * cipher.
@@ -203,6 +245,81 @@ public class CBCBlockCipher
         return length;
     }
 
+    /**
+     * CBC encryption of a run of blocks.  Each block has to be chained to the
+     * ciphertext of the one before it, so the underlying cipher still sees
+     * one block at a time, but we skip the repeated bounds checks and the
+     * copy of every ciphertext block back into cbcV.
+     */
+    private int encryptBlocks(
+        byte[]      in,
+        int         inOff,
+        int         len,
+        byte[]      out,
+        int         outOff)
+    {
+        byte[]  chain = cbcV;
+        int     chainOff = 0;
+
+        for (int pos = 0; pos < len; pos += blockSize)
+        {
+            for (int i = 0; i < blockSize; i++)
+            {
+                cbcNextV[i] = (byte)(chain[chainOff + i] ^ in[inOff + pos + i]);
+            }
+
+            cipher.processBlock(cbcNextV, 0, out, outOff + pos);
+
+            chain = out;
+            chainOff = outOff + pos;
+        }
+
+        System.arraycopy(out, outOff + len - blockSize, cbcV, 0, blockSize);
+
+        return len;
+    }
+
+    /**
+     * CBC decryption of a run of blocks.  Unlike encryption, the blocks can
+     * all go through the underlying cipher in one go, after which each is
+     * XORed with the ciphertext block before it.  That only works if the
+     * output doesn't overwrite ciphertext we still need, so overlapping
+     * buffers fall back to the block at a time path.
+     */
+    private int decryptBlocks(
+        byte[]      in,
+        int         inOff,
+        int         len,
+        byte[]      out,
+        int         outOff)
+    {
+        if (in == out && outOff < inOff + len && inOff < outOff + len)
+        {
+            for (int pos = 0; pos < len; pos += blockSize)
+            {
+                decryptBlock(in, inOff + pos, out, outOff + pos);
+            }
+
+            return len;
+        }
+
+        cipher.processBlocks(in, inOff, len / blockSize, out, outOff);
+
+        for (int i = 0; i < blockSize; i++)
+        {
+            out[outOff + i] ^= cbcV[i];
+        }
+
+        for (int pos = blockSize; pos < len; pos++)
+        {
+            out[outOff + pos] ^= in[inOff + pos - blockSize];
+        }
+
+        System.arraycopy(in, inOff + len - blockSize, cbcV, 0, blockSize);
+
+        return len;
+    }
+
     /**
      * Do the appropriate chaining step for CBC mode decryption.
      *
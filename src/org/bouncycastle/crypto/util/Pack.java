@@ -92,6 +92,15 @@ public abstract class Pack
         return ((long)(hi & 0xffffffffL) << 32) | (long)(lo & 0xffffffffL);
     }
 
+    public static void littleEndianToLong(byte[] bs, int off, long[] ns)
+    {
+        for (int i = 0; i < ns.length; ++i)
+        {
+            ns[i] = littleEndianToLong(bs, off);
+            off += 8;
+        }
+    }
+
     public static void longToLittleEndian(long n, byte[] bs, int off)
     {
         intToLittleEndian((int)(n & 0xffffffffL), bs, off);
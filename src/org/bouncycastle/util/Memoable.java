@@ -0,0 +1,27 @@
+package org.bouncycastle.util;
+
+/**
+ * Interface for objects, such as digests, whose internal state can be
+ * captured and later restored.  HMac uses this to remember the digest state
+ * after absorbing its padded keys, rather than re-hashing them every time.
+ */
+public interface Memoable
+{
+    /**
+     * Produce a copy of this object with its configuration and in its current state.
+     * <p>
+     * The returned object may be used simply to store the state, or may be used as a similar object
+     * starting from the copied state.
+     */
+    public Memoable copy();
+
+    /**
+     * Restore a copied object state into this object.
+     * <p>
+     * Implementations of this method <em>should</em> try to avoid or minimise memory allocation to perform the reset.
+     *
+     * @param other an object originally {@link #copy() copied} from an object of the same type as this instance.
+     * @throws ClassCastException if the provided object is not of the correct type.
+     */
+    public void reset(Memoable other);
+}
@@ -0,0 +1,299 @@
+/* HashKernelTest.java
+ *
+ * PROJECT:       Cryptnos (Android)
+ * REQUIRES:      HashProvider
+ *
+ * This test makes sure the allocation-free hash chain kernels in HashProvider
+ * produce exactly the same output as the loop SiteParameters.generatePassword()
+ * originally used, and that the hash engines themselves haven't changed.  If a
+ * single byte came out different, every password Cryptnos generates would
+ * change, so this is one thing we can't afford to get wrong.
+ *
+ * There are two sets of checks.  First, each hash is run against fixed
+ * known-answer vectors:  the published digest of "abc", and the result of a
+ * 1000-iteration chain as computed by the original, unmodified Bouncy Castle
+ * and Java engines.  These catch any change to the digest classes themselves
+ * (the Tiger, RIPEMD-160, and Whirlpool engines have all been reworked for
+ * speed).  Second, for every registered hash, the kernel is compared byte for
+ * byte with the original allocate-per-iteration loop at 1, 2, 3, and 1000
+ * iterations over a handful of seeds, including an empty one.  The small
+ * iteration counts catch any mix-up between the kernel's two alternating
+ * buffers, while the large one catches anything that only goes wrong over a
+ * long chain.  We also make sure the kernel never writes over its seed.
+ *
+ * This is a plain Java program rather than an Android test, since neither
+ * HashProvider nor the digest engines touch anything Android-specific.  Run
+ * tests/run-tests.sh to build and run it; it exits with a non-zero status if
+ * anything doesn't match.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.RIPEMD160Digest;
+import org.bouncycastle.crypto.digests.TigerDigest;
+import org.bouncycastle.crypto.digests.WhirlpoolDigest;
+
+/**
+ * Checks the HashProvider hash chain kernels against known-answer vectors
+ * and against the original allocate-per-iteration loop from
+ * SiteParameters.generatePassword().
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class HashKernelTest {
+
+	/** The iteration counts to compare the kernel and the old loop at */
+	private static final int[] ITERATIONS = { 1, 2, 3, 1000 };
+
+	/** The seeds to start each hash chain with.  The site and passphrase are
+	 *  concatenated before hashing, so these mimic that, along with the
+	 *  degenerate cases of an empty seed and one longer than any block.  The
+	 *  non-ASCII characters are escaped so this file doesn't depend on the
+	 *  compiler's source encoding. */
+	private static final String[] SEEDS = {
+		"",
+		"www.example.comMy Secret Passphrase",
+		"\u00fcber-site.example\u00e9\u00e8\u4e2d\u6587",
+		"0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz" +
+			"0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz"
+	};
+
+	/** The seed for the known-answer hash chains */
+	private static final String CHAIN_SEED = "www.example.comMy Secret Passphrase";
+	/** The number of iterations in the known-answer hash chains */
+	private static final int CHAIN_ITERATIONS = 1000;
+
+	/** The known-answer vectors for each hash:  its name, its digest of "abc",
+	 *  and the result of hashing CHAIN_SEED for CHAIN_ITERATIONS iterations.
+	 *  The "abc" digests are the published test vectors; the chains were
+	 *  computed with the original engines, before any of them were changed. */
+	private static final String[][] VECTORS = {
+		{ "MD5",
+		  "900150983cd24fb0d6963f7d28e17f72",
+		  "6e8dc1b8c313ab67537261f5102bb329" },
+		{ "SHA-1",
+		  "a9993e364706816aba3e25717850c26c9cd0d89d",
+		  "674ce9d1bedb81a9e39f30caafec10ea3185135c" },
+		{ "SHA-256",
+		  "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+		  "4f495241588d8b4c8acb48516cc91aab409950288f52dd8751400a62b37624d0" },
+		{ "SHA-384",
+		  "cb00753f45a35e8bb5a03d699ac65007272c32ab0eded163" +
+		  "1a8b605a43ff5bed8086072ba1e7cc2358baeca134c825a7",
+		  "f7a52f919566406f7dc5ffd92dc0d26755d69c1421ae7e53" +
+		  "85e7273115fb2bb6179d1442c722f961eb8b87ea00efb91d" },
+		{ "SHA-512",
+		  "ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a" +
+		  "2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f",
+		  "721a04bc842e0a79c385f39332db1d87259f76ccd6061edad40866a4a2e95b07" +
+		  "76e3dcda59ac35b880374ad1cd4d76c7db4047f3a5eb5084ab5c9a7d3685dc57" },
+		{ "RIPEMD-160",
+		  "8eb208f7e05d987a9b044a8e98c6b087f15a0bfc",
+		  "ad4db355ce89412b1c83f09a1014c87f06bcfa75" },
+		{ "Tiger",
+		  "2aab1484e8c158f2bfb8c5ff41b57a525129131c957b5f93",
+		  "8aeaf3deae70ce7e5a6ba55bd619cd37177e16e0db4e7d0e" },
+		{ "Whirlpool",
+		  "4e2448a4c6f486bb16b6562c73b4020bf3043e3a731bce721ae1b303d97e6d4c" +
+		  "7181eebdb6c57e277d0e34957114cbd6c797fc9d95d8b582d225292076d4eef5",
+		  "7fafa4bfc33ff5737ca66b0c56634c7ce9fa8b58cc199e5dd984e37cec187e7f" +
+		  "6f02a8ea0974227faad89c20afd104920df77db2fe1c8b44cc37bcae8face63f" }
+	};
+
+	/**
+	 * Run the test
+	 * @param args Ignored
+	 * @throws Exception Thrown if anything unexpected goes wrong
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int failures = checkVectors();
+		failures += compareWithOldLoop();
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Check every hash against its known-answer vectors, using both the
+	 * HashProvider kernel and the old loop
+	 * @return The number of failures
+	 * @throws Exception Thrown if anything unexpected goes wrong
+	 */
+	private static int checkVectors() throws Exception
+	{
+		int failures = 0;
+		byte[] abc = "abc".getBytes("US-ASCII");
+		byte[] chainSeed = CHAIN_SEED.getBytes("UTF-8");
+		for (int v = 0; v < VECTORS.length; v++)
+		{
+			String name = VECTORS[v][0];
+			HashProvider provider = HashProvider.forName(name);
+			if (provider == null)
+			{
+				System.out.println("FAIL: " + name + " is not registered");
+				failures++;
+				continue;
+			}
+			String[][] checks = {
+				{ "abc, kernel", toHex(provider.iterate(abc, 1, null)),
+					VECTORS[v][1] },
+				{ "abc, old loop", toHex(oldIterate(name, abc, 1)),
+					VECTORS[v][1] },
+				{ "chain, kernel", toHex(provider.iterate(chainSeed,
+					CHAIN_ITERATIONS, null)), VECTORS[v][2] },
+				{ "chain, old loop", toHex(oldIterate(name, chainSeed,
+					CHAIN_ITERATIONS)), VECTORS[v][2] }
+			};
+			int hashFailures = 0;
+			for (int c = 0; c < checks.length; c++)
+			{
+				if (!checks[c][2].equals(checks[c][1]))
+				{
+					System.out.println("FAIL: " + name + " known answer (" +
+						checks[c][0] + "): expected " + checks[c][2] +
+						", got " + checks[c][1]);
+					hashFailures++;
+				}
+			}
+			System.out.println((hashFailures == 0 ? "ok:   " : "FAIL: ") +
+				name + " known answers");
+			failures += hashFailures;
+		}
+		return failures;
+	}
+
+	/**
+	 * Compare the kernel of every registered hash with the old loop
+	 * @return The number of failures
+	 * @throws Exception Thrown if anything unexpected goes wrong
+	 */
+	private static int compareWithOldLoop() throws Exception
+	{
+		int failures = 0;
+		int checked = 0;
+		// Walk every hash that made it into the registry.  We stop at the
+		// first empty ID, since IDs are handed out in order:
+		for (int id = 0; HashProvider.forID(id) != null; id++)
+		{
+			HashProvider provider = HashProvider.forID(id);
+			int hashFailures = 0;
+			for (int s = 0; s < SEEDS.length; s++)
+			{
+				byte[] seed = SEEDS[s].getBytes("UTF-8");
+				for (int i = 0; i < ITERATIONS.length; i++)
+				{
+					byte[] seedCopy = (byte[])seed.clone();
+					byte[] expected = oldIterate(provider.getName(), seed,
+						ITERATIONS[i]);
+					byte[] actual = provider.iterate(seedCopy, ITERATIONS[i],
+						null);
+					checked++;
+					if (!Arrays.equals(expected, actual))
+					{
+						System.out.println("FAIL: " + provider.getName() +
+							", seed " + s + ", " + ITERATIONS[i] +
+							" iteration(s): output differs");
+						hashFailures++;
+					}
+					if (!Arrays.equals(seed, seedCopy))
+					{
+						System.out.println("FAIL: " + provider.getName() +
+							", seed " + s + ", " + ITERATIONS[i] +
+							" iteration(s): seed was modified");
+						hashFailures++;
+					}
+				}
+			}
+			System.out.println((hashFailures == 0 ? "ok:   " : "FAIL: ") +
+				provider.getName() + " kernel vs. old loop");
+			failures += hashFailures;
+		}
+		System.out.println(checked + " chains compared, " + failures +
+			" failure(s)");
+		if (checked == 0) failures++;
+		return failures;
+	}
+
+	/**
+	 * The original hash chain loop from SiteParameters.generatePassword(),
+	 * minus the progress messages.  Each iteration hashes into a brand new
+	 * byte array.
+	 * @param hash The name of the hash algorithm
+	 * @param seed The initial input to the hash chain
+	 * @param iterations The number of iterations to perform
+	 * @return The final digest of the hash chain
+	 * @throws Exception Thrown if the hash is unknown or not available
+	 */
+	private static byte[] oldIterate(String hash, byte[] seed, int iterations)
+		throws Exception
+	{
+		byte[] result = seed;
+		MessageDigest internalHasher = null;
+		Digest bcHasher = null;
+		if (hash.compareTo("MD5") == 0 ||
+			hash.compareTo("SHA-1") == 0 ||
+			hash.compareTo("SHA-256") == 0 ||
+			hash.compareTo("SHA-384") == 0 ||
+			hash.compareTo("SHA-512") == 0) {
+			internalHasher = MessageDigest.getInstance(hash);
+		}
+		else if (hash.compareTo("RIPEMD-160") == 0) {
+			bcHasher = new RIPEMD160Digest();
+		}
+		else if (hash.compareTo("Tiger") == 0) {
+			bcHasher = new TigerDigest();
+		}
+		else if (hash.compareTo("Whirlpool") == 0) {
+			bcHasher = new WhirlpoolDigest();
+		}
+		else throw new Exception("No reference loop for hash " + hash);
+		if (internalHasher != null)
+		{
+			for (int i = 0; i < iterations; i++)
+				result = internalHasher.digest(result);
+		}
+		else
+		{
+			for (int i = 0; i < iterations; i++)
+			{
+				bcHasher.update(result, 0, result.length);
+				result = new byte[bcHasher.getDigestSize()];
+				bcHasher.doFinal(result, 0);
+				bcHasher.reset();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert the specified bytes to a lower-case hexadecimal string
+	 * @param data The bytes to convert
+	 * @return The hex string
+	 */
+	private static String toHex(byte[] data)
+	{
+		StringBuffer sb = new StringBuffer(data.length * 2);
+		for (int i = 0; i < data.length; i++)
+		{
+			String hex = Integer.toHexString(data[i] & 0xff);
+			if (hex.length() == 1) sb.append('0');
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+}
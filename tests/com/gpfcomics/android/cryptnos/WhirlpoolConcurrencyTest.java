@@ -0,0 +1,218 @@
+/* WhirlpoolConcurrencyTest.java
+ *
+ * PROJECT:       Cryptnos (Android)
+ * REQUIRES:      WhirlpoolDigest
+ *
+ * This test makes sure WhirlpoolDigest is safe to use from several threads at
+ * once.  The Whirlpool lookup tables used to be rebuilt by every new instance;
+ * now they are built once in a static initializer and shared by every instance
+ * in the process.  That's only safe as long as nothing ever writes to them
+ * after the class is loaded, and as long as the class initializer itself
+ * publishes them correctly to every thread.  Since we now decrypt and generate
+ * on several threads at a time, a mistake here would show up as the odd
+ * corrupted hash under load, which is exactly the sort of thing that never
+ * turns up in ordinary testing.
+ *
+ * So we start a pool of worker threads all at once, before anyone has touched
+ * WhirlpoolDigest, and have them hash 64 different 100 KB messages while
+ * another thread keeps creating (and copying) new instances the whole time.
+ * The workers feed their data in a mix of single bytes and odd-sized chunks
+ * so both the byte-at-a-time and the bulk update paths get exercised.  Once
+ * they're done, we hash every message again on a single thread and compare.
+ * We also check a couple of the published Whirlpool test vectors, so we know
+ * the single-threaded answers are right to begin with.
+ *
+ * This is a plain Java program rather than an Android test, since the digest
+ * engines don't touch anything Android-specific.  Run tests/run-tests.sh to
+ * build and run it; it exits with a non-zero status if anything doesn't
+ * match.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See theGNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, write to the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+ * Boston, MA  02110-1301, USA.
+*/
+package com.gpfcomics.android.cryptnos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.crypto.digests.WhirlpoolDigest;
+
+/**
+ * Hashes many messages with WhirlpoolDigest on several threads at once while
+ * new instances are being created, and checks the results against the same
+ * messages hashed on a single thread.
+ * @version 1.3.5
+ * @since 1.3.5
+ */
+public class WhirlpoolConcurrencyTest {
+
+	/** The number of messages to hash */
+	private static final int TASKS = 64;
+	/** The size of each message in bytes */
+	private static final int MESSAGE_SIZE = 100 * 1024;
+	/** The number of worker threads to hash the messages on */
+	private static final int THREADS = 8;
+
+	/** The Whirlpool digest of the empty string, from the ISO test vectors */
+	private static final String EMPTY_DIGEST =
+		"19FA61D75522A4669B44E39C1D2E1726C530232130D407F89AFEE0964997F7A7" +
+		"3E83BE698B288FEBCF88E3E03C4F0757EA8964E59B63D93708B138CC42A66EB3";
+	/** The Whirlpool digest of "abc", from the ISO test vectors */
+	private static final String ABC_DIGEST =
+		"4E2448A4C6F486BB16B6562C73B4020BF3043E3A731BCE721AE1B303D97E6D4C" +
+		"7181EEBDB6C57E277D0E34957114CBD6C797FC9D95D8B582D225292076D4EEF5";
+
+	/** Set to true to tell the instance-creating thread to stop */
+	private static volatile boolean done = false;
+
+	/**
+	 * Run the test
+	 * @param args Ignored
+	 * @throws Exception Thrown if anything unexpected goes wrong
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		// Build our messages up front.  We'll use a fixed seed so any failure
+		// can be reproduced:
+		Random random = new Random(1234567L);
+		final byte[][] messages = new byte[TASKS][MESSAGE_SIZE];
+		for (int i = 0; i < TASKS; i++) random.nextBytes(messages[i]);
+
+		// Start the thread that does nothing but create new instances (and
+		// copies of them) for as long as the workers are running.  It waits
+		// at the same gate as the workers, so the class gets loaded while
+		// everybody is racing for it:
+		final CountDownLatch gate = new CountDownLatch(1);
+		final int[] created = new int[1];
+		Thread creator = new Thread(new Runnable() {
+			public void run() {
+				try { gate.await(); }
+				catch (InterruptedException e) { return; }
+				while (!done) {
+					WhirlpoolDigest digest = new WhirlpoolDigest();
+					digest.update((byte)created[0]);
+					new WhirlpoolDigest(digest);
+					created[0]++;
+				}
+			}
+		}, "WhirlpoolCreator");
+		creator.setDaemon(true);
+		creator.start();
+
+		// Now queue up the workers.  Each one hashes its message with a
+		// brand new instance, feeding it in a mix of single bytes and chunks
+		// of varying sizes:
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		ArrayList<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+		for (int i = 0; i < TASKS; i++)
+		{
+			final byte[] message = messages[i];
+			final int task = i;
+			results.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					gate.await();
+					WhirlpoolDigest digest = new WhirlpoolDigest();
+					int offset = 0;
+					int chunk = 1 + task;
+					while (offset < message.length)
+					{
+						int len = Math.min(chunk, message.length - offset);
+						if (len < 8) {
+							for (int j = 0; j < len; j++)
+								digest.update(message[offset + j]);
+						} else digest.update(message, offset, len);
+						offset += len;
+						chunk = chunk * 7 % 4093 + 1;
+					}
+					byte[] out = new byte[digest.getDigestSize()];
+					digest.doFinal(out, 0);
+					return out;
+				}
+			}));
+		}
+		gate.countDown();
+
+		// Collect the results, then stop the creator:
+		byte[][] concurrent = new byte[TASKS][];
+		for (int i = 0; i < TASKS; i++) concurrent[i] = results.get(i).get();
+		pool.shutdown();
+		done = true;
+		creator.join();
+
+		// Make sure the single-threaded answers are right to begin with:
+		int failures = 0;
+		if (!EMPTY_DIGEST.equals(toHex(hash(new byte[0]))))
+		{
+			System.out.println("FAIL: digest of the empty string is wrong");
+			failures++;
+		}
+		if (!ABC_DIGEST.equals(toHex(hash("abc".getBytes("US-ASCII")))))
+		{
+			System.out.println("FAIL: digest of \"abc\" is wrong");
+			failures++;
+		}
+
+		// Then hash every message again on this thread, in one go, and
+		// compare with what the workers got:
+		for (int i = 0; i < TASKS; i++)
+		{
+			if (!Arrays.equals(hash(messages[i]), concurrent[i]))
+			{
+				System.out.println("FAIL: message " + i +
+					" hashed differently on a worker thread");
+				failures++;
+			}
+		}
+		System.out.println(TASKS + " messages of " + MESSAGE_SIZE +
+			" bytes hashed on " + THREADS + " threads while " + created[0] +
+			" instances were created, " + failures + " failure(s)");
+		if (failures > 0) System.exit(1);
+	}
+
+	/**
+	 * Hash the specified data in a single update with a new WhirlpoolDigest
+	 * @param data The data to hash
+	 * @return The digest
+	 */
+	private static byte[] hash(byte[] data)
+	{
+		WhirlpoolDigest digest = new WhirlpoolDigest();
+		digest.update(data, 0, data.length);
+		byte[] out = new byte[digest.getDigestSize()];
+		digest.doFinal(out, 0);
+		return out;
+	}
+
+	/**
+	 * Convert the specified bytes to an upper-case hexadecimal string
+	 * @param data The bytes to convert
+	 * @return The hex string
+	 */
+	private static String toHex(byte[] data)
+	{
+		StringBuffer sb = new StringBuffer(data.length * 2);
+		for (int i = 0; i < data.length; i++)
+		{
+			String hex = Integer.toHexString(data[i] & 0xff).toUpperCase();
+			if (hex.length() == 1) sb.append('0');
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+}
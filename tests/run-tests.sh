@@ -0,0 +1,33 @@
+#!/bin/sh
+#
+# Build and run the standalone Cryptnos tests.  These only exercise classes
+# that don't depend on Android (the bundled Bouncy Castle engines and
+# HashProvider), so all they need is a JDK; no Android SDK is required.  Each
+# test is a plain Java program that exits with a non-zero status on failure.
+#
+# Usage:  sh tests/run-tests.sh [test class name ...]
+#
+# With no arguments, every test is run.
+
+cd "$(dirname "$0")/.." || exit 1
+
+TESTS="HashKernelTest WhirlpoolConcurrencyTest"
+if [ $# -gt 0 ]; then TESTS="$*"; fi
+
+OUT="${TMPDIR:-/tmp}/cryptnos-tests.$$"
+trap 'rm -rf "$OUT"' EXIT
+mkdir -p "$OUT" || exit 1
+
+# Only the sources the tests actually need are compiled.  Everything under
+# src/com depends on Android, apart from HashProvider.
+javac -nowarn -encoding UTF-8 -d "$OUT" \
+	$(find src/org -name '*.java') \
+	src/com/gpfcomics/android/cryptnos/HashProvider.java \
+	$(find tests -name '*.java') || exit 1
+
+STATUS=0
+for TEST in $TESTS; do
+	echo "== $TEST"
+	java -cp "$OUT" "com.gpfcomics.android.cryptnos.$TEST" || STATUS=1
+done
+exit $STATUS